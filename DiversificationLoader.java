@@ -0,0 +1,340 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class loads the inputs of query diversification once per run.
+ * The intents file and the initial ranking file are parsed in a single
+ * pass into a per-qid index, with the external document ids resolved
+ * to internal docids. The resolved rankings can be kept in a compact
+ * binary cache file, so later runs skip parsing and resolving entirely.
+ * */
+public class DiversificationLoader {
+
+    /**
+     * The magic number and version of the binary cache file.
+     * */
+    private static final int CACHE_MAGIC = 0x44495652;
+    private static final int CACHE_VERSION = 1;
+
+    /**
+     * The ranking of one query or one intent, in file order.
+     * */
+    private static class IntentRanking {
+        private int size = 0;
+        private int[] docids = new int[16];
+        private double[] scores = new double[16];
+
+        /**
+         * Append a <docid, score> pair.
+         * @param docid the internal docid
+         * @param score the score
+         * */
+        private void add(int docid, double score) {
+            if (size == docids.length) {
+                int[] largerDocids = new int[size * 2];
+                double[] largerScores = new double[size * 2];
+                System.arraycopy(docids, 0, largerDocids, 0, size);
+                System.arraycopy(scores, 0, largerScores, 0, size);
+                docids = largerDocids;
+                scores = largerScores;
+            }
+            docids[size] = docid;
+            scores[size] = score;
+            size++;
+        }
+    }
+
+    /**
+     * The intents of each query id, in file order.
+     * */
+    private Map<Integer, List<String>> intents = new HashMap<Integer, List<String>>();
+    /**
+     * The rankings of each query id. Index 0 is the original query,
+     * index i is the i'th intent.
+     * */
+    private Map<Integer, List<IntentRanking>> rankings = new TreeMap<Integer, List<IntentRanking>>();
+
+    /**
+     * Load the diversification inputs.
+     * @param intentsFile the file path to the query intents
+     * @param initialRankingFile the file path to the initial rankings, or null
+     * @param cacheFile the file path to the binary ranking cache, or null
+     * @return the loaded inputs
+     * @throws IOException Error accessing the files or the index.
+     * */
+    public static DiversificationLoader load(String intentsFile,
+            String initialRankingFile, String cacheFile) throws IOException {
+
+        DiversificationLoader loader = new DiversificationLoader();
+        loader.loadIntents(intentsFile);
+        if (initialRankingFile != null) {
+            // try the binary cache first, otherwise parse and rebuild it
+            if (cacheFile == null || !loader.readCache(cacheFile, initialRankingFile)) {
+                loader.loadInitialRankings(initialRankingFile);
+                if (cacheFile != null) {
+                    loader.writeCache(cacheFile, initialRankingFile);
+                }
+            }
+        }
+        return loader;
+    }
+
+    /**
+     * Parse the intents file. Each line is "qid.intent:query".
+     * @param intentsFile the file path
+     * */
+    private void loadIntents(String intentsFile) throws IOException {
+        MappedLineReader reader = new MappedLineReader(intentsFile);
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String query = line.substring(colon + 1);
+            String qidWIntent = line.substring(0, colon);
+            int dot = qidWIntent.indexOf('.');
+            int qid = Integer.parseInt(dot < 0 ? qidWIntent : qidWIntent.substring(0, dot));
+            List<String> qIntents = intents.get(qid);
+            if (qIntents == null) {
+                qIntents = new ArrayList<String>();
+                intents.put(qid, qIntents);
+            }
+            qIntents.add(query);
+        }
+        reader.close();
+    }
+
+    /**
+     * Get the ranking of a query intent, creating the missing ones.
+     * @param qid the query id
+     * @param intent the intent number, 0 for the original query
+     * @return the ranking
+     * */
+    private IntentRanking getOrCreateRanking(int qid, int intent) {
+        List<IntentRanking> qRankings = rankings.get(qid);
+        if (qRankings == null) {
+            qRankings = new ArrayList<IntentRanking>();
+            rankings.put(qid, qRankings);
+        }
+        while (qRankings.size() < intent + 1) {
+            qRankings.add(new IntentRanking());
+        }
+        return qRankings.get(intent);
+    }
+
+    /**
+     * Parse the initial ranking file in trec_eval format. The query column
+     * is "qid" for the original query and "qid.intent" for an intent.
+     * Documents that are not in the index are ignored.
+     * @param initialRankingFile the file path
+     * */
+    private void loadInitialRankings(String initialRankingFile) throws IOException {
+        // each external id is resolved only once
+        Map<String, Integer> resolved = new HashMap<String, Integer>();
+
+        MappedLineReader reader = new MappedLineReader(initialRankingFile);
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            String[] pair = line.split(" ");
+            if (pair.length < 5) {
+                continue;
+            }
+            String query = pair[0];
+            String externalid = pair[2];
+            Integer docid = resolved.get(externalid);
+            if (docid == null) {
+                docid = Idx.lookupInternalDocid(externalid);
+                resolved.put(externalid, docid);
+            }
+            if (docid < 0) {
+                continue;
+            }
+            double score = Double.parseDouble(pair[4]);
+            int qid = 0;
+            int intent = 0;
+            int dot = query.indexOf('.');
+            if (dot >= 0) {
+                // different intents
+                qid = Integer.parseInt(query.substring(0, dot));
+                intent = Integer.parseInt(query.substring(dot + 1));
+            } else {
+                // original query
+                qid = Integer.parseInt(query);
+            }
+            getOrCreateRanking(qid, intent).add(docid, score);
+        }
+        reader.close();
+    }
+
+    /**
+     * Read the rankings from the binary cache file.
+     * @param cacheFile the cache file path
+     * @param initialRankingFile the ranking file that the cache was built from
+     * @return true if the cache was valid and loaded, false otherwise
+     * */
+    private boolean readCache(String cacheFile, String initialRankingFile) throws IOException {
+        File cache = new File(cacheFile);
+        File source = new File(initialRankingFile);
+        if (!cache.canRead() || cache.length() > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(cache, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            // the cache must match the ranking file and the index
+            if (buffer.remaining() < 36
+                    || buffer.getInt() != CACHE_MAGIC
+                    || buffer.getInt() != CACHE_VERSION
+                    || buffer.getLong() != source.length()
+                    || buffer.getLong() != source.lastModified()
+                    || buffer.getLong() != Idx.getIndexSignature()) {
+                return false;
+            }
+            // every count is checked against the bytes left, so a truncated
+            // or half-written cache is rejected rather than read past its end
+            int numQueries = buffer.getInt();
+            if (numQueries < 0 || numQueries > buffer.remaining() / 8) {
+                return false;
+            }
+            for (int i = 0; i < numQueries; ++i) {
+                if (buffer.remaining() < 8) {
+                    return rejectCache();
+                }
+                int qid = buffer.getInt();
+                int numIntents = buffer.getInt();
+                if (numIntents < 0 || numIntents > buffer.remaining() / 4) {
+                    return rejectCache();
+                }
+                for (int intent = 0; intent < numIntents; ++intent) {
+                    if (buffer.remaining() < 4) {
+                        return rejectCache();
+                    }
+                    int size = buffer.getInt();
+                    if (size < 0 || size > buffer.remaining() / 12) {
+                        return rejectCache();
+                    }
+                    IntentRanking r = getOrCreateRanking(qid, intent);
+                    r.docids = new int[Math.max(size, 1)];
+                    r.scores = new double[Math.max(size, 1)];
+                    buffer.asIntBuffer().get(r.docids, 0, size);
+                    buffer.position(buffer.position() + 4 * size);
+                    buffer.asDoubleBuffer().get(r.scores, 0, size);
+                    buffer.position(buffer.position() + 8 * size);
+                    r.size = size;
+                }
+            }
+            if (buffer.hasRemaining()) {
+                return rejectCache();
+            }
+            return true;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, IndexOutOfBoundsException: a damaged cache
+            return rejectCache();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Discard the rankings read from a damaged cache, so that they are
+     * parsed from the ranking file instead.
+     * @return false
+     * */
+    private boolean rejectCache() {
+        rankings.clear();
+        return false;
+    }
+
+    /**
+     * Write the rankings to the binary cache file.
+     * @param cacheFile the cache file path
+     * @param initialRankingFile the ranking file that the cache is built from
+     * */
+    private void writeCache(String cacheFile, String initialRankingFile) throws IOException {
+        File source = new File(initialRankingFile);
+        // written aside and renamed, so a torn cache is never published
+        File temp = new File(cacheFile + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeLong(Idx.getIndexSignature());
+            out.writeInt(rankings.size());
+            for (Map.Entry<Integer, List<IntentRanking>> entry : rankings.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (IntentRanking r : entry.getValue()) {
+                    out.writeInt(r.size);
+                    for (int j = 0; j < r.size; ++j) {
+                        out.writeInt(r.docids[j]);
+                    }
+                    for (int j = 0; j < r.size; ++j) {
+                        out.writeDouble(r.scores[j]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        File target = new File(cacheFile);
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot replace " + cacheFile);
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Cannot rename " + temp + " to " + cacheFile);
+        }
+    }
+
+    /**
+     * Get all intents of a query.
+     * @param qid the query id
+     * @return the intent queries, in file order
+     * */
+    public List<String> getIntents(int qid) {
+        List<String> qIntents = intents.get(qid);
+        return (qIntents == null) ? new ArrayList<String>() : qIntents;
+    }
+
+    /**
+     * Get the initial rankings of a query and its intents as document score maps.
+     * Each ranking is truncated to the length of the original query ranking,
+     * and to maxInputRankingsLength.
+     * @param qid the query id
+     * @param maxInputRankingsLength the maximum number of documents of each ranking
+     * @return the document score maps, the original query first
+     * */
+    public List<Map<Integer, Double>> getInitialRankings(int qid, int maxInputRankingsLength) {
+        List<IntentRanking> qRankings = rankings.get(qid);
+        if (qRankings == null) {
+            throw new IllegalArgumentException("No initial ranking for query " + qid);
+        }
+        List<Map<Integer, Double>> allRankings = new ArrayList<Map<Integer, Double>>(qRankings.size());
+        int size = Math.min(qRankings.get(0).size, maxInputRankingsLength);
+        for (IntentRanking r : qRankings) {
+            int n = Math.min(size, r.size);
+            Map<Integer, Double> currMap = new HashMap<Integer, Double>(n);
+            for (int j = 0; j < n; ++j) {
+                currMap.put(r.docids[j], r.scores[j]);
+            }
+            allRankings.add(currMap);
+        }
+        return allRankings;
+    }
+}
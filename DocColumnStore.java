@@ -0,0 +1,180 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A column store of per-document values indexed by internal docid.
+ * Each column is a float array of size maxDoc; a document without
+ * a value holds NaN. The store is persisted as a binary sidecar file
+ * next to the index and read back through a memory mapping, so
+ * auxiliary per-document data is parsed only once per index.
+ * */
+public class DocColumnStore {
+
+    /**
+     * The magic number and version of the sidecar file.
+     * */
+    private static final int MAGIC = 0x44434f4c;
+    private static final int VERSION = 1;
+    /**
+     * The size of the sidecar header in bytes.
+     * */
+    private static final int HEADER_SIZE = 24;
+    /**
+     * The number of floats written per chunk.
+     * */
+    private static final int WRITE_CHUNK = 1 << 18;
+
+    /**
+     * The columns, each indexed by internal docid.
+     * */
+    private float[][] columns;
+
+    /**
+     * Create an empty store; every value is missing.
+     * @param numColumns the number of columns
+     * @param maxDoc the size of each column
+     * */
+    public DocColumnStore(int numColumns, int maxDoc) {
+        columns = new float[numColumns][];
+        for (int i = 0; i < numColumns; ++i) {
+            columns[i] = new float[maxDoc];
+            Arrays.fill(columns[i], Float.NaN);
+        }
+    }
+
+    /**
+     * Create a store over existing columns.
+     * @param columns_ the columns, each indexed by internal docid
+     * */
+    private DocColumnStore(float[][] columns_) {
+        columns = columns_;
+    }
+
+    /**
+     * Get a column.
+     * @param column the column number
+     * @return the values of the column, indexed by internal docid
+     * */
+    public float[] getColumn(int column) {
+        return columns[column];
+    }
+
+    /**
+     * Get the number of columns.
+     * @return the number of columns
+     * */
+    public int getNumColumns() {
+        return columns.length;
+    }
+
+    /**
+     * A signature of a source file, used to detect stale sidecars.
+     * @param file the source file
+     * @return the signature
+     * */
+    public static long fileSignature(File file) {
+        return file.length() * 31 + file.lastModified();
+    }
+
+    /**
+     * Read a store from a sidecar file.
+     * @param path the sidecar file path
+     * @param numColumns the expected number of columns
+     * @param maxDoc the expected size of each column
+     * @param signature the expected signature of the source data
+     * @return the store, or null if the file is missing or does not match
+     * @throws IOException Error accessing the file.
+     * */
+    public static DocColumnStore read(String path, int numColumns, int maxDoc,
+            long signature) throws IOException {
+
+        File sidecar = new File(path);
+        long expectedLength = HEADER_SIZE + 4L * numColumns * maxDoc;
+        if (!sidecar.canRead() || sidecar.length() != expectedLength) {
+            return null;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(sidecar, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC
+                    || header.getInt() != VERSION
+                    || header.getLong() != signature
+                    || header.getInt() != numColumns
+                    || header.getInt() != maxDoc) {
+                return null;
+            }
+            // each column is mapped on its own, so a column may be up to 2GB
+            float[][] columns = new float[numColumns][];
+            for (int i = 0; i < numColumns; ++i) {
+                long offset = HEADER_SIZE + 4L * i * maxDoc;
+                FloatBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset, 4L * maxDoc).asFloatBuffer();
+                columns[i] = new float[maxDoc];
+                data.get(columns[i]);
+            }
+            return new DocColumnStore(columns);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Write the store to a sidecar file. It is written to a temporary file
+     * of its own next to the sidecar and renamed into place, so a reader
+     * never sees a partly written sidecar and concurrent writers cannot
+     * interleave their writes.
+     * @param path the sidecar file path
+     * @param signature the signature of the source data
+     * @throws IOException Error accessing the file.
+     * */
+    public void write(String path, long signature) throws IOException {
+        int maxDoc = (columns.length == 0) ? 0 : columns[0].length;
+        File temp = File.createTempFile(new File(path).getName(), ".tmp",
+                new File(path).getAbsoluteFile().getParentFile());
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        boolean written = false;
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(signature)
+                  .putInt(columns.length).putInt(maxDoc);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(4 * WRITE_CHUNK);
+            for (float[] column : columns) {
+                for (int begin = 0; begin < maxDoc; begin += WRITE_CHUNK) {
+                    int length = Math.min(WRITE_CHUNK, maxDoc - begin);
+                    chunk.clear();
+                    chunk.asFloatBuffer().put(column, begin, length);
+                    chunk.limit(4 * length);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                }
+            }
+            written = true;
+        } finally {
+            file.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+        File target = new File(path);
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot replace " + path);
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Cannot rename " + temp + " to " + path);
+        }
+    }
+}
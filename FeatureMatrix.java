@@ -0,0 +1,243 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A documents x features matrix of learning to rank feature values.
+ * The values are one row-major double array, and a bitmap marks the
+ * values that are missing (the feature does not apply or is disabled).
+ * Each row has its own bitmap words, so threads may fill different rows
+ * at the same time.
+ * */
+public class FeatureMatrix {
+
+    /**
+     * The number of documents and features.
+     * */
+    private int numDocs;
+    private int numFeatures;
+    /**
+     * The feature values, row d starts at d * numFeatures.
+     * */
+    private double[] values;
+    /**
+     * The missing value bitmap, row d starts at word d * wordsPerRow.
+     * */
+    private long[] missing;
+    private int wordsPerRow;
+
+    /**
+     * Create a matrix in which every value is missing.
+     * @param numDocs_ the number of documents
+     * @param numFeatures_ the number of features
+     * */
+    public FeatureMatrix(int numDocs_, int numFeatures_) {
+        numDocs = numDocs_;
+        numFeatures = numFeatures_;
+        values = new double[numDocs * numFeatures];
+        wordsPerRow = (numFeatures + 63) >>> 6;
+        missing = new long[numDocs * wordsPerRow];
+        Arrays.fill(missing, -1L);
+    }
+
+    /**
+     * Get the number of documents.
+     * @return the number of documents
+     * */
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * Get the number of features.
+     * @return the number of features
+     * */
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    /**
+     * Get the row-major values. Missing values are 0 after normalization.
+     * @return the values
+     * */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * See if a value is missing.
+     * @param doc the document row
+     * @param feature the feature column
+     * @return true if the value is missing
+     * */
+    public boolean isMissing(int doc, int feature) {
+        return (missing[doc * wordsPerRow + (feature >>> 6)] & (1L << feature)) != 0;
+    }
+
+    /**
+     * Set a row. NaN values are missing.
+     * @param doc the document row
+     * @param row the feature values
+     * */
+    public void setRow(int doc, double[] row) {
+        int base = doc * numFeatures;
+        int wordBase = doc * wordsPerRow;
+        Arrays.fill(missing, wordBase, wordBase + wordsPerRow, 0L);
+        for (int f = 0; f < numFeatures; ++f) {
+            if (Double.isNaN(row[f])) {
+                values[base + f] = 0.0;
+                missing[wordBase + (f >>> 6)] |= 1L << f;
+            } else {
+                values[base + f] = row[f];
+            }
+        }
+    }
+
+    /**
+     * Get a row. Missing values are NaN.
+     * @param doc the document row
+     * @param row the output feature values
+     * */
+    public void getRow(int doc, double[] row) {
+        int base = doc * numFeatures;
+        for (int f = 0; f < numFeatures; ++f) {
+            row[f] = isMissing(doc, f) ? Double.NaN : values[base + f];
+        }
+    }
+
+    /**
+     * Mark a feature missing in every row.
+     * @param feature the feature column
+     * */
+    public void setMissing(int feature) {
+        for (int d = 0; d < numDocs; ++d) {
+            values[d * numFeatures + feature] = 0.0;
+            missing[d * wordsPerRow + (feature >>> 6)] |= 1L << feature;
+        }
+    }
+
+    /**
+     * Normalize each feature to [0..1] over the documents. A missing
+     * value, or a feature with the same value in every document, becomes 0.
+     * */
+    public void normalizeMinMax() {
+        double[] min = new double[numFeatures];
+        double[] max = new double[numFeatures];
+        Arrays.fill(min, Double.MAX_VALUE);
+        Arrays.fill(max, -Double.MAX_VALUE);
+        for (int d = 0; d < numDocs; ++d) {
+            int base = d * numFeatures;
+            for (int f = 0; f < numFeatures; ++f) {
+                if (!isMissing(d, f)) {
+                    min[f] = Math.min(min[f], values[base + f]);
+                    max[f] = Math.max(max[f], values[base + f]);
+                }
+            }
+        }
+        double[] range = new double[numFeatures];
+        for (int f = 0; f < numFeatures; ++f) {
+            range[f] = max[f] - min[f];
+        }
+        transform(min, range);
+    }
+
+    /**
+     * Normalize each feature to zero mean and unit variance over the
+     * documents. A missing value, or a feature with the same value in
+     * every document, becomes 0.
+     * */
+    public void normalizeZScore() {
+        double[] mean = new double[numFeatures];
+        double[] m2 = new double[numFeatures];
+        int[] cnt = new int[numFeatures];
+        // welford's online mean and variance
+        for (int d = 0; d < numDocs; ++d) {
+            int base = d * numFeatures;
+            for (int f = 0; f < numFeatures; ++f) {
+                if (!isMissing(d, f)) {
+                    double x = values[base + f];
+                    cnt[f]++;
+                    double delta = x - mean[f];
+                    mean[f] += delta / cnt[f];
+                    m2[f] += delta * (x - mean[f]);
+                }
+            }
+        }
+        double[] std = new double[numFeatures];
+        for (int f = 0; f < numFeatures; ++f) {
+            std[f] = (cnt[f] > 0) ? Math.sqrt(m2[f] / cnt[f]) : 0.0;
+        }
+        transform(mean, std);
+    }
+
+    /**
+     * Replace every value x with (x - shift) / divisor, and missing values
+     * and values of features whose divisor is not positive with 0.
+     * */
+    private void transform(double[] shift, double[] divisor) {
+        for (int d = 0; d < numDocs; ++d) {
+            int base = d * numFeatures;
+            for (int f = 0; f < numFeatures; ++f) {
+                values[base + f] = (divisor[f] > 0.0) ?
+                        (values[base + f] - shift[f]) / divisor[f] : 0.0;
+            }
+            int wordBase = d * wordsPerRow;
+            for (int w = 0; w < wordsPerRow; ++w) {
+                long bits = missing[wordBase + w];
+                while (bits != 0) {
+                    int f = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    if (f < numFeatures) { values[base + f] = 0.0; }
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the rows in the SVMrank text format, one line per document:
+     * "label qid:q 1:v1 2:v2 ...  # comment". Every feature is written.
+     * @param writer the output writer
+     * @param line the reused line buffer
+     * @param qid the query id
+     * @param labels the label of each document
+     * @param comments the comment of each document, its external docid
+     * @throws IOException Error writing the output.
+     * */
+    public void writeSVMRank(Writer writer, StringBuilder line, int qid,
+            int[] labels, String[] comments) throws IOException {
+        for (int d = 0; d < numDocs; ++d) {
+            int base = d * numFeatures;
+            line.setLength(0);
+            line.append(labels[d]).append(" qid:").append(qid).append(' ');
+            for (int f = 0; f < numFeatures; ++f) {
+                line.append(f + 1).append(':').append(values[base + f]).append(' ');
+            }
+            line.append(" # ").append(comments[d]).append('\n');
+            writer.append(line);
+        }
+    }
+
+    /**
+     * Write the rows in binary: the qid and the matrix size, then the
+     * label and comment of each document, then the row-major values.
+     * @param output the output
+     * @param qid the query id
+     * @param labels the label of each document
+     * @param comments the comment of each document, its external docid
+     * @throws IOException Error writing the output.
+     * */
+    public void writeBinary(DataOutput output, int qid,
+            int[] labels, String[] comments) throws IOException {
+        output.writeInt(qid);
+        output.writeInt(numDocs);
+        output.writeInt(numFeatures);
+        for (int d = 0; d < numDocs; ++d) {
+            output.writeInt(labels[d]);
+            output.writeUTF(comments[d]);
+        }
+        for (int i = 0; i < values.length; ++i) {
+            output.writeDouble(values[i]);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A compact forward index of one field: for each document, the block of
+ * (term id, tf) pairs of the terms it contains. Term ids are the
+ * ordinals of the field's terms in the Lucene term dictionary, and the
+ * vocabulary and the ctf of every term are stored with the blocks. It
+ * is built from the posting lists, so it does not need stored term
+ * vectors, and it is persisted as a sidecar file next to the index.
+ * <p>
+ * The vocabulary and the block offsets are held in memory; a block is
+ * read from the file with a positional read, so threads may read
+ * blocks at the same time.
+ * </p><p>
+ * Run the class on its own to build the sidecar offline:
+ * java ForwardIndex indexPath [field [sidecarFile]]
+ * </p>
+ * */
+public class ForwardIndex {
+
+    /**
+     * The magic number and version of the sidecar file.
+     * */
+    private static final int MAGIC = 0x46574458;
+    private static final int VERSION = 1;
+    /**
+     * The default suffix of the sidecar file, appended to the index path.
+     * */
+    private static final String SIDECAR_SUFFIX = ".fwd";
+    /**
+     * The most (term id, tf) pairs held in memory while building.
+     * */
+    private static final int BUILD_CHUNK = 1 << 24;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The field.
+     * */
+    private String field;
+    /**
+     * The ctf of each term id.
+     * */
+    private long[] ctfs;
+    /**
+     * The UTF-8 bytes of the terms; term id t is bytes termOffsets[t] .. termOffsets[t+1].
+     * */
+    private int[] termOffsets;
+    private byte[] termBytes;
+    /**
+     * The block of document d is pairs docOffsets[d] .. docOffsets[d+1].
+     * */
+    private long[] docOffsets;
+    /**
+     * The sidecar file, and the byte position of the first block.
+     * */
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long blocksStart;
+
+    private ForwardIndex() {
+    }
+
+    /**
+     * Open the forward index of a field of the current index. The sidecar
+     * file is used if it was built from the same index and field,
+     * otherwise it is rebuilt.
+     * @param sidecarFile the sidecar file path, or null to put it next to the index
+     * @param field the field
+     * @return the forward index
+     * @throws IOException Error accessing the files or the index.
+     * */
+    public static ForwardIndex open(String sidecarFile, String field) throws IOException {
+        if (sidecarFile == null) {
+            sidecarFile = Idx.getIndexPath() + SIDECAR_SUFFIX;
+        }
+        ForwardIndex forwardIndex = read(sidecarFile, field, Idx.getIndexSignature());
+        if (forwardIndex == null) {
+            build(sidecarFile, field);
+            forwardIndex = read(sidecarFile, field, Idx.getIndexSignature());
+        }
+        return forwardIndex;
+    }
+
+    /**
+     * Read a sidecar file.
+     * @return the forward index, or null if the file is missing or stale
+     * */
+    private static ForwardIndex read(String path, String field, long signature) throws IOException {
+        File f = new File(path);
+        if (!f.isFile()) {
+            return null;
+        }
+        ForwardIndex forwardIndex = new ForwardIndex();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != signature) {
+                return null;
+            }
+            String storedField = in.readUTF();
+            int maxDoc = in.readInt();
+            int numTerms = in.readInt();
+            int termBytesLength = in.readInt();
+            if (!storedField.equals(field) || maxDoc != Idx.getMaxDoc()) {
+                return null;
+            }
+            forwardIndex.field = field;
+            forwardIndex.ctfs = new long[numTerms];
+            for (int t = 0; t < numTerms; ++t) {
+                forwardIndex.ctfs[t] = in.readLong();
+            }
+            forwardIndex.termOffsets = new int[numTerms + 1];
+            for (int t = 0; t <= numTerms; ++t) {
+                forwardIndex.termOffsets[t] = in.readInt();
+            }
+            forwardIndex.termBytes = new byte[termBytesLength];
+            in.readFully(forwardIndex.termBytes);
+            forwardIndex.docOffsets = new long[maxDoc + 1];
+            for (int d = 0; d <= maxDoc; ++d) {
+                forwardIndex.docOffsets[d] = in.readLong();
+            }
+            forwardIndex.blocksStart = 4 + 4 + 8 + 2 + field.getBytes(UTF8).length + 4 + 4 + 4
+                    + 8L * numTerms + 4L * (numTerms + 1) + termBytesLength + 8L * (maxDoc + 1);
+        } finally {
+            in.close();
+        }
+        forwardIndex.file = new RandomAccessFile(f, "r");
+        forwardIndex.channel = forwardIndex.file.getChannel();
+        return forwardIndex;
+    }
+
+    /**
+     * Build the forward index of a field of the current index into a
+     * sidecar file. The vocabulary and the block sizes are gathered in
+     * one pass over the posting lists; the blocks are then filled a range
+     * of documents at a time, so memory stays bounded on large indexes.
+     * @param path the sidecar file path
+     * @param field the field
+     * @throws IOException Error accessing the file or the index.
+     * */
+    public static void build(String path, String field) throws IOException {
+        int maxDoc = Idx.getMaxDoc();
+        Bits liveDocs = MultiFields.getLiveDocs(Idx.getIndexReader());
+        Terms terms = MultiFields.getTerms(Idx.getIndexReader(), field);
+
+        // the vocabulary, the ctfs, and the number of terms of each document
+        int[] blockSizes = new int[maxDoc];
+        LongArray ctfs = new LongArray();
+        IntArray termOffsets = new IntArray();
+        ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+        termOffsets.add(0);
+        DocsEnum docs = null;
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator(null);
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                termBytes.write(term.bytes, term.offset, term.length);
+                termOffsets.add(termBytes.size());
+                ctfs.add(termsEnum.totalTermFreq());
+                docs = termsEnum.docs(liveDocs, docs);
+                for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc()) {
+                    blockSizes[d]++;
+                }
+            }
+        }
+        long[] docOffsets = new long[maxDoc + 1];
+        for (int d = 0; d < maxDoc; ++d) {
+            docOffsets[d + 1] = docOffsets[d] + blockSizes[d];
+        }
+        blockSizes = null;
+
+        File tmp = new File(path + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(Idx.getIndexSignature());
+            out.writeUTF(field);
+            out.writeInt(maxDoc);
+            out.writeInt(ctfs.size());
+            out.writeInt(termBytes.size());
+            for (int t = 0; t < ctfs.size(); ++t) {
+                out.writeLong(ctfs.get(t));
+            }
+            for (int t = 0; t < termOffsets.size(); ++t) {
+                out.writeInt(termOffsets.get(t));
+            }
+            termBytes.writeTo(out);
+            termBytes = null;
+            for (int d = 0; d <= maxDoc; ++d) {
+                out.writeLong(docOffsets[d]);
+            }
+
+            // the blocks of the documents [lo, hi), filled term by term
+            int lo = 0;
+            while (lo < maxDoc) {
+                int hi = lo + 1;
+                while (hi < maxDoc && docOffsets[hi + 1] - docOffsets[lo] <= BUILD_CHUNK) {
+                    hi++;
+                }
+                int size = (int) (docOffsets[hi] - docOffsets[lo]);
+                int[] pairs = new int[2 * size];
+                int[] fill = new int[hi - lo];
+                if (terms != null && size > 0) {
+                    TermsEnum termsEnum = terms.iterator(null);
+                    for (int t = 0; termsEnum.next() != null; ++t) {
+                        docs = termsEnum.docs(liveDocs, docs);
+                        for (int d = docs.advance(lo); d < hi; d = docs.nextDoc()) {
+                            int p = (int) (docOffsets[d] - docOffsets[lo]) + fill[d - lo]++;
+                            pairs[2 * p] = t;
+                            pairs[2 * p + 1] = docs.freq();
+                        }
+                    }
+                }
+                for (int i = 0; i < pairs.length; ++i) {
+                    out.writeInt(pairs[i]);
+                }
+                lo = hi;
+            }
+        } finally {
+            out.close();
+        }
+        File target = new File(path);
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot replace " + path);
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Cannot rename " + tmp + " to " + path);
+        }
+    }
+
+    /**
+     * Get the field.
+     * @return the field name
+     * */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * Get the number of terms in the vocabulary.
+     * @return the number of term ids
+     * */
+    public int getNumTerms() {
+        return ctfs.length;
+    }
+
+    /**
+     * Get a term.
+     * @param termId the term id
+     * @return the term
+     * */
+    public String getTerm(int termId) {
+        int begin = termOffsets[termId];
+        return new String(termBytes, begin, termOffsets[termId + 1] - begin, UTF8);
+    }
+
+    /**
+     * Get the ctf of a term.
+     * @param termId the term id
+     * @return the ctf
+     * */
+    public long getCtf(int termId) {
+        return ctfs[termId];
+    }
+
+    /**
+     * Get the number of distinct terms of a document.
+     * @param docid the internal docid
+     * @return the size of the document's block
+     * */
+    public int getBlockSize(int docid) {
+        return (int) (docOffsets[docid + 1] - docOffsets[docid]);
+    }
+
+    /**
+     * Read the block of a document.
+     * @param docid the internal docid
+     * @param termIds the output term ids, in increasing order; at least getBlockSize long
+     * @param tfs the output tf of each term
+     * @return the number of terms read
+     * @throws IOException Error reading the file.
+     * */
+    public int readBlock(int docid, int[] termIds, int[] tfs) throws IOException {
+        int size = getBlockSize(docid);
+        ByteBuffer buffer = ByteBuffer.allocate(8 * size);
+        long position = blocksStart + 8 * docOffsets[docid];
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Truncated forward index block of document " + docid);
+            }
+        }
+        buffer.flip();
+        IntBuffer ints = buffer.asIntBuffer();
+        for (int i = 0; i < size; ++i) {
+            termIds[i] = ints.get();
+            tfs[i] = ints.get();
+        }
+        return size;
+    }
+
+    /**
+     * Close the sidecar file.
+     * @throws IOException Error closing the file.
+     * */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * A growable int array.
+     * */
+    private static class IntArray {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        private void add(int v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+
+        private int get(int i) {
+            return values[i];
+        }
+
+        private int size() {
+            return size;
+        }
+    }
+
+    /**
+     * A growable long array.
+     * */
+    private static class LongArray {
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        private void add(long v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+
+        private long get(int i) {
+            return values[i];
+        }
+
+        private int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Build the sidecar file of an index offline.
+     * @param args the index path, and optionally the field and the sidecar file path
+     * @throws Exception Error accessing the index or the file.
+     * */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage:  java ForwardIndex indexPath [field [sidecarFile]]");
+            System.exit(1);
+        }
+        Idx.open(args[0]);
+        String field = (args.length > 1) ? args[1] : "body";
+        String sidecarFile = (args.length > 2) ? args[2] : args[0] + SIDECAR_SUFFIX;
+        long start = System.currentTimeMillis();
+        build(sidecarFile, field);
+        System.out.println("Wrote " + sidecarFile + " (" + Idx.getMaxDoc() + " documents) in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -2,14 +2,10 @@
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
-import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.document.Field;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -17,9 +13,13 @@ import org.apache.lucene.document.Field;
  *  <p>
  *  Most homework assignments only require a single index.  However,
  *  several distinct indexes can be open simultaneously (e.g., for
- *  federated search).  The Idx class designates one index the
- *  <i>current</i> index.  All requests are satisfied from the current
- *  index.  setCurrentIndex changes the current index.
+ *  federated search).  Each open index is an immutable IndexHandle,
+ *  kept in a concurrent registry by path.  The Idx class designates
+ *  one index the <i>current</i> index, and the static methods below
+ *  are satisfied from it.  setCurrentIndex changes the current index;
+ *  code that holds a handle, e.g., a query initialized with
+ *  Qry.initialize (r, index), is not affected, so queries against
+ *  different indexes can run concurrently.
  *  </p>
  */
 public class Idx {
@@ -27,19 +27,61 @@ public class Idx {
   //  --------------- Constants and variables ---------------------
 
   /**
-   *  The Lucene index that is considered the current index.
+   *  The open indexes, by path.
    */
-  public static IndexReader INDEXREADER=null;
+  private static final ConcurrentHashMap<String,IndexHandle> openIndexes =
+    new ConcurrentHashMap<String,IndexHandle> ();
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
-
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static HashMap<String,DocLengthStore> openDocLengthStores =
-    new HashMap<String,DocLengthStore> ();
+  /**
+   *  The index that is considered the current index.
+   */
+  private static final AtomicReference<IndexHandle> currentIndex =
+    new AtomicReference<IndexHandle> ();
 
   //  --------------- Methods ---------------------------------------
 
+  /**
+   *  Get the current index.
+   *  @return The handle of the current index.
+   *  @throws IllegalStateException No index is open.
+   */
+  public static IndexHandle getCurrentIndex () {
+    IndexHandle index = currentIndex.get ();
+
+    if (index == null) {
+      throw new IllegalStateException ("No index is open.");
+    }
+
+    return index;
+  }
+
+  /**
+   *  Get an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return The handle of the index.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static IndexHandle getIndex (String indexPath)
+    throws IllegalArgumentException {
+
+    IndexHandle index = openIndexes.get (indexPath);
+
+    if (index == null) {
+      throw new IllegalArgumentException (
+        "An index must be open before it can be used");
+    }
+
+    return index;
+  }
+
+  /**
+   *  Get the Lucene reader of the current index.
+   *  @return The index reader.
+   */
+  public static IndexReader getIndexReader () {
+    return getCurrentIndex ().getReader ();
+  }
+
   /**
    *  Get the specified attribute from the specified document.
    *  @param attributeName Name of attribute
@@ -49,9 +91,32 @@ public class Idx {
    */
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
-      Document d = Idx.INDEXREADER.document (docid);
-      
-    return d.get (attributeName);
+    return getCurrentIndex ().getAttributes (docid, attributeName)[0];
+  }
+
+  /**
+   *  Get several attributes from the specified document with a single
+   *  stored-field read.
+   *  @param docid The internal docid in the lucene index.
+   *  @param attributeNames Names of the attributes
+   *  @return the attribute values, in the order of attributeNames
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static String[] getAttributes (int docid, String... attributeNames)
+    throws IOException {
+    return getCurrentIndex ().getAttributes (docid, attributeNames);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term in the field
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (String fieldName, String term)
+    throws IOException {
+    return getCurrentIndex ().getDocFreq (fieldName, term);
   }
 
   /**
@@ -62,7 +127,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return getCurrentIndex ().getDocCount (fieldName);
   }
 
   /**
@@ -73,9 +138,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get("externalId");
-    return eid;
+    return getCurrentIndex ().getExternalDocid (iid);
   }
 
   /**
@@ -87,7 +150,7 @@ public class Idx {
    */
   public static int getFieldLength (String fieldName, int docid)
     throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    return getCurrentIndex ().getFieldLength (fieldName, docid);
   }
 
   /**
@@ -100,30 +163,60 @@ public class Idx {
    */
   public static int getInternalDocid(String externalId)
     throws Exception {
-      
-      Query q = new TermQuery(new Term("externalId", externalId));
 
-      IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-      TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-      searcher.search(q, collector);
-      ScoreDoc[] hits = collector.topDocs().scoreDocs;
+      int docid = getCurrentIndex ().searchInternalDocid (externalId);
 
-        if (hits.length < 1) {
+        if (docid < 0) {
           throw new Exception("External id not found.");
         } else {
-          return hits[0].doc;
+          return docid;
         }
   }
   
   public static boolean hasInternalDocid(String externalId) throws Exception {
-      Query q = new TermQuery(new Term("externalId", externalId));
+      return getCurrentIndex ().searchInternalDocid (externalId) >= 0;
+  }
+
+  /**
+   *  Get the internal document id for a document specified by its
+   *  external id, or -1 if no such document exists.  This is a direct
+   *  lookup in the externalId term dictionary, so it is much cheaper
+   *  than getInternalDocid when many external ids must be resolved.
+   *  @param externalId The external docid in the Lucene index.
+   *  @return the internal docid, or -1 if it does not exist.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int lookupInternalDocid (String externalId)
+    throws IOException {
+    return getCurrentIndex ().lookupInternalDocid (externalId);
+  }
+
+  /**
+   *  Get the path of the current index.  Auxiliary data that is
+   *  derived from the index is stored next to it.
+   *  @return The directory that contains the current index.
+   */
+  public static String getIndexPath () {
+    return getCurrentIndex ().getPath ();
+  }
 
-      IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-      TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-      searcher.search(q, collector);
-      ScoreDoc[] hits = collector.topDocs().scoreDocs;
-      
-      return hits.length >= 1;
+  /**
+   *  Get one greater than the largest internal document id in the
+   *  corpus.  Arrays indexed by internal docid should have this size.
+   *  @return The maximum internal document id plus one.
+   */
+  public static int getMaxDoc () {
+    return getCurrentIndex ().getMaxDoc ();
+  }
+
+  /**
+   *  Get a signature of the current index.  Sidecar files derived from
+   *  the index store it, so that stale files can be detected.
+   *  @return The signature of the index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getIndexSignature () throws IOException {
+    return getCurrentIndex ().getSignature ();
   }
 
   /**
@@ -132,7 +225,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return getCurrentIndex ().getNumDocs ();
   }
 
   /**
@@ -145,7 +238,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return getCurrentIndex ().getSumOfFieldLengths (fieldName);
   }
 
 
@@ -160,70 +253,63 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return getCurrentIndex ().getTotalTermFreq (fieldName, term);
   }
 
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index and the associated DocLengthStore.  An index
+   *  that is already open is not opened again.
    *  @param indexPath A directory that contains a Lucene index.
+   *  @return The handle of the index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
-  public static void open (String indexPath)
+  public static IndexHandle open (String indexPath)
     throws IllegalArgumentException, IOException {
 
-    IndexReader indexReader;
-    DocLengthStore docLengthStore;
+    IndexHandle index = openIndexes.get (indexPath);
 
-    //  Open the Lucene index
+    if (index == null) {
 
-    indexReader = 
-      DirectoryReader.open (FSDirectory.open (new File (indexPath)));
-  
-    if (indexReader == null) {
-      throw new IllegalArgumentException ("Unable to open the index.");
-    }
-  
-    //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
-
-    docLengthStore = new DocLengthStore (indexReader);
-  
-    if (docLengthStore == null) {
-      throw new IllegalArgumentException ("Unable to open the document length store.");
-    }
+      //  Keep track of the open indexes.  If another thread opened
+      //  the same index meanwhile, its handle is used, and the files
+      //  opened here are closed.
 
-    //  Keep track of the open indexes.
+      IndexHandle opened = IndexHandle.open (indexPath);
+      index = openIndexes.putIfAbsent (indexPath, opened);
 
-    openIndexReaders.put (indexPath, indexReader);
-    openDocLengthStores.put (indexPath, docLengthStore);
+      if (index == null) {
+        index = opened;
+      } else {
+        opened.close ();
+      }
+    }
 
     //  The current index defaults to the first open index.
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
-      Idx.DOCLENGTHSTORE = docLengthStore;
-    }
+    currentIndex.compareAndSet (null, index);
+
+    return index;
   }
 
   /**
-   *  Change the current index to another open Lucene index.
+   *  Change the current index to another open Lucene index.  The
+   *  caches that belong to an index are kept in its handle, so nothing
+   *  else changes.
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
   public static void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-    DocLengthStore docLengthStore = openDocLengthStores.get (indexPath);
+    IndexHandle index = openIndexes.get (indexPath);
 
-    if ((indexReader == null) || (docLengthStore == null)) {
+    if (index == null) {
       throw new IllegalArgumentException (
         "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
-    Idx.DOCLENGTHSTORE = docLengthStore;
+    currentIndex.set (index);
   }
 }
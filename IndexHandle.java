@@ -0,0 +1,276 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * An open index: its Lucene reader, its document length store, and the
+ * data derived from it (the field statistics and the term dictionary of
+ * each field). A handle never changes index, so queries that hold one
+ * can run against different indexes at the same time; Qry.initialize
+ * takes the handle a query is evaluated against.
+ * <p>
+ * The field statistics and the dictionaries are filled on first use and
+ * are safe to share between threads. Handles are opened and looked up
+ * through Idx.
+ * </p>
+ * */
+public final class IndexHandle {
+
+    private final String path;
+    private final IndexReader reader;
+    private final DocLengthStore docLengthStore;
+    private final long signature;
+    /**
+     * The field statistics asked from Lucene so far.
+     * */
+    private final ConcurrentHashMap<String, Long> sumOfFieldLengths = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<String, Integer> docCounts = new ConcurrentHashMap<String, Integer>();
+    /**
+     * The term dictionary of each field.
+     * */
+    private final ConcurrentHashMap<String, TermDictionary> dictionaries =
+            new ConcurrentHashMap<String, TermDictionary>();
+
+    private IndexHandle(String path_, IndexReader reader_, DocLengthStore docLengthStore_,
+            long signature_) {
+        path = path_;
+        reader = reader_;
+        docLengthStore = docLengthStore_;
+        signature = signature_;
+    }
+
+    /**
+     * Open a Lucene index and its document length store.
+     * @param indexPath a directory that contains a Lucene index
+     * @return the handle
+     * @throws IllegalArgumentException Unable to open the index.
+     * @throws IOException Error accessing the index.
+     * */
+    static IndexHandle open(String indexPath) throws IllegalArgumentException, IOException {
+        DirectoryReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+        if (reader == null) {
+            throw new IllegalArgumentException("Unable to open the index.");
+        }
+        // Lucene doesn't store field lengths the way that we want them,
+        // so we have our own document length store.
+        DocLengthStore docLengthStore = new DocLengthStore(reader);
+        return new IndexHandle(indexPath, reader, docLengthStore, signatureOf(reader));
+    }
+
+    /**
+     * Compute the signature of an index from its commit. A rebuilt index
+     * has a new version (Lucene seeds it from the clock) and each commit
+     * a new segments generation, so the signature changes even when the
+     * document count does not; maxDoc is mixed in as a sanity check.
+     * @param reader the reader of the index
+     * @return the signature
+     * @throws IOException Error accessing the index.
+     * */
+    private static long signatureOf(DirectoryReader reader) throws IOException {
+        long signature = reader.getVersion();
+        signature = signature * 31 + reader.getIndexCommit().getGeneration();
+        signature = signature * 31 + reader.maxDoc();
+        return signature;
+    }
+
+    /**
+     * Get the directory of the index. Auxiliary data that is derived from
+     * the index is stored next to it.
+     * @return the index path
+     * */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the Lucene reader.
+     * @return the reader
+     * */
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Get a signature of the index. Sidecar files derived from the index
+     * store it, so that stale files can be detected.
+     * @return the signature
+     * */
+    public long getSignature() {
+        return signature;
+    }
+
+    /**
+     * Get the term dictionary of a field.
+     * @param field the field name
+     * @return the dictionary
+     * */
+    public TermDictionary getTermDictionary(String field) {
+        TermDictionary dictionary = dictionaries.get(field);
+        if (dictionary == null) {
+            dictionaries.putIfAbsent(field, new TermDictionary(this, field));
+            dictionary = dictionaries.get(field);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Get one greater than the largest internal document id.
+     * @return the maximum internal document id plus one
+     * */
+    public int getMaxDoc() {
+        return reader.maxDoc();
+    }
+
+    /**
+     * Get the number of documents.
+     * @return the number of documents
+     * */
+    public long getNumDocs() {
+        return reader.numDocs();
+    }
+
+    /**
+     * Get the number of documents that contain a field.
+     * @param fieldName the field name
+     * @return the number of documents
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public int getDocCount(String fieldName) throws IOException {
+        Integer count = docCounts.get(fieldName);
+        if (count == null) {
+            count = reader.getDocCount(fieldName);
+            docCounts.put(fieldName, count);
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of term occurrences in a field of every document.
+     * @param fieldName the field name
+     * @return the sum of the field lengths
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public long getSumOfFieldLengths(String fieldName) throws IOException {
+        Long sum = sumOfFieldLengths.get(fieldName);
+        if (sum == null) {
+            sum = reader.getSumTotalTermFreq(fieldName);
+            sumOfFieldLengths.put(fieldName, sum);
+        }
+        return sum;
+    }
+
+    /**
+     * Get the length of a field of a document.
+     * @param fieldName the field name
+     * @param docid the internal docid
+     * @return the length of the field, including stopword positions
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public int getFieldLength(String fieldName, int docid) throws IOException {
+        return (int) docLengthStore.getDocLength(fieldName, docid);
+    }
+
+    /**
+     * Get the number of documents that contain a term in a field.
+     * @param fieldName the field name
+     * @param term the term
+     * @return the df
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public int getDocFreq(String fieldName, String term) throws IOException {
+        return reader.docFreq(new Term(fieldName, new BytesRef(term)));
+    }
+
+    /**
+     * Get the number of occurrences of a term in a field of every document.
+     * @param fieldName the field name
+     * @param term the term
+     * @return the ctf
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public long getTotalTermFreq(String fieldName, String term) throws IOException {
+        return reader.totalTermFreq(new Term(fieldName, new BytesRef(term)));
+    }
+
+    /**
+     * Get several stored attributes of a document with a single read.
+     * @param docid the internal docid
+     * @param attributeNames the names of the attributes
+     * @return the attribute values, in the order of attributeNames
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public String[] getAttributes(int docid, String... attributeNames) throws IOException {
+        Document d = reader.document(docid);
+        String[] values = new String[attributeNames.length];
+        for (int i = 0; i < attributeNames.length; i++) {
+            values[i] = d.get(attributeNames[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Get the external document id of a document.
+     * @param docid the internal docid
+     * @return the external docid
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public String getExternalDocid(int docid) throws IOException {
+        return getAttributes(docid, "externalId")[0];
+    }
+
+    /**
+     * Get the internal docid of an external id, or -1 if there is none,
+     * from the externalId term dictionary.
+     * @param externalId the external docid
+     * @return the internal docid, or -1
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public int lookupInternalDocid(String externalId) throws IOException {
+        DocsEnum docs = MultiFields.getTermDocsEnum(reader, MultiFields.getLiveDocs(reader),
+                "externalId", new BytesRef(externalId));
+        if (docs == null) {
+            return -1;
+        }
+        int docid = docs.nextDoc();
+        return (docid == DocIdSetIterator.NO_MORE_DOCS) ? -1 : docid;
+    }
+
+    /**
+     * Search for the document of an external id.
+     * @param externalId the external docid
+     * @return the internal docid, or -1
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    int searchInternalDocid(String externalId) throws IOException {
+        Query q = new TermQuery(new Term("externalId", externalId));
+        IndexSearcher searcher = new IndexSearcher(reader);
+        TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
+        searcher.search(q, collector);
+        ScoreDoc[] hits = collector.topDocs().scoreDocs;
+        return (hits.length < 1) ? -1 : hits[0].doc;
+    }
+
+    /**
+     * Close the index. The document length store reads through the
+     * reader, so closing the reader releases both.
+     * @throws IOException Error closing the index.
+     * */
+    void close() throws IOException {
+        reader.close();
+    }
+}
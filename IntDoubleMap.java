@@ -0,0 +1,146 @@
+import java.util.Arrays;
+
+/**
+ * A map from non-negative int keys, such as TermDictionary ids, to double
+ * values. It is an open-addressing hash table with linear probing over
+ * two primitive arrays, so it neither boxes keys and values nor creates
+ * an entry object per key.
+ * */
+public class IntDoubleMap {
+
+    /**
+     * The key of an empty slot.
+     * */
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private double[] values;
+    private int size = 0;
+    private int mask;
+
+    /**
+     * Create a map for about expectedSize keys.
+     * @param expectedSize the expected number of keys
+     * */
+    public IntDoubleMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) * 2;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new double[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * The slot of a key, or the empty slot where it would go.
+     * */
+    private int slot(int key) {
+        // spread the bits, dense ids would otherwise fill runs of slots
+        int h = key * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Get the number of keys.
+     * @return the number of keys
+     * */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * See if a key is in the map.
+     * @param key the key
+     * @return true if the key has a value
+     * */
+    public boolean containsKey(int key) {
+        return keys[slot(key)] == key;
+    }
+
+    /**
+     * Get the value of a key.
+     * @param key the key
+     * @param defaultValue the value of an absent key
+     * @return the value, or defaultValue if the key is absent
+     * */
+    public double get(int key, double defaultValue) {
+        int slot = slot(key);
+        return (keys[slot] == key) ? values[slot] : defaultValue;
+    }
+
+    /**
+     * Set the value of a key.
+     * @param key the key, not negative
+     * @param value the value
+     * */
+    public void put(int key, double value) {
+        int slot = slot(key);
+        if (keys[slot] != key) {
+            slot = insert(key, slot);
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Add to the value of a key, which starts at 0.
+     * @param key the key, not negative
+     * @param delta the amount to add
+     * */
+    public void add(int key, double delta) {
+        int slot = slot(key);
+        if (keys[slot] != key) {
+            slot = insert(key, slot);
+        }
+        values[slot] += delta;
+    }
+
+    /**
+     * Put a new key into an empty slot, growing the table to keep the
+     * load factor at most 0.5.
+     * @return the slot of the key
+     * */
+    private int insert(int key, int slot) {
+        if (key < 0) {
+            throw new IllegalArgumentException("IntDoubleMap keys must not be negative: " + key);
+        }
+        if (2 * (size + 1) > keys.length) {
+            int[] oldKeys = keys;
+            double[] oldValues = values;
+            allocate(keys.length * 2);
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldKeys[i] != EMPTY) {
+                    int s = slot(oldKeys[i]);
+                    keys[s] = oldKeys[i];
+                    values[s] = oldValues[i];
+                }
+            }
+            slot = slot(key);
+        }
+        keys[slot] = key;
+        values[slot] = 0.0;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Get the keys, in no particular order.
+     * @return a new array of the keys
+     * */
+    public int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != EMPTY) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+}
@@ -105,6 +105,20 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (Idx.getCurrentIndex (), termString, fieldString);
+  }
+
+  /**
+   *  Get an inverted list from an index.
+   *  @param index The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexHandle index, String termString, String fieldString)
+    throws IOException {
+
+    IndexReader reader = index.getReader ();
 
     //  Store the field name.  This is used by other query operators.
 
@@ -115,14 +129,14 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if (reader.docFreq(term) < 1)
       return;
 
     //  Lookup the inverted list.
 
     DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-				       MultiFields.getLiveDocs(Idx.INDEXREADER),
+      MultiFields.getTermPositionsEnum(reader,
+				       MultiFields.getLiveDocs(reader),
 				       fieldString, termBytes);
 
     //  Copy from Lucene inverted list format to our inverted list
@@ -0,0 +1,233 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent cache of raw learning to rank features, keyed by query
+ * and external docid. All features are cached before the disabled
+ * features are masked out and before normalization, so runs that only
+ * change letor:featureDisable or the SVM parameters reuse one extraction.
+ * <p>
+ * The file starts with a configuration signature (index, BM25 and Indri
+ * parameters, PageRank file); a cache built under another configuration
+ * is discarded. Each query is one block: the qid and query stems, the
+ * external docids, then one column of values per feature.
+ * </p>
+ * */
+public class LetorFeatureCache {
+
+    /**
+     * The magic number and version of the cache file.
+     * */
+    private static final int MAGIC = 0x4c46434b;
+    private static final int VERSION = 1;
+
+    /**
+     * The cached features of one query.
+     * */
+    private static class QueryBlock {
+        /**
+         * The row of each external docid.
+         * */
+        private Map<String, Integer> docIndex = new HashMap<String, Integer>();
+        /**
+         * The external docids and their feature values, in row order.
+         * */
+        private List<String> externalIds = new ArrayList<String>();
+        private List<double[]> rows = new ArrayList<double[]>();
+    }
+
+    /**
+     * The cache file path.
+     * */
+    private String path;
+    /**
+     * The configuration the features were extracted under.
+     * */
+    private String signature;
+    /**
+     * The number of features per document.
+     * */
+    private int numFeatures;
+    /**
+     * The cached queries, keyed by qid and query stems.
+     * */
+    private Map<String, QueryBlock> queries = new LinkedHashMap<String, QueryBlock>();
+    /**
+     * True if features were added since the cache was read.
+     * */
+    private boolean modified = false;
+
+    /**
+     * Open a feature cache. A missing file, or one written under another
+     * configuration, gives an empty cache.
+     * @param path_ the cache file path
+     * @param signature_ the configuration the features are extracted under
+     * @param numFeatures_ the number of features per document
+     * @throws IOException Error accessing the file.
+     * */
+    public LetorFeatureCache(String path_, String signature_, int numFeatures_)
+            throws IOException {
+        path = path_;
+        signature = signature_;
+        numFeatures = numFeatures_;
+        if (new File(path).canRead()) {
+            read();
+        }
+    }
+
+    /**
+     * The key of a query.
+     * */
+    private static String queryKey(int qid, String[] queryStems) {
+        StringBuilder key = new StringBuilder().append(qid).append(':');
+        for (String stem : queryStems) {
+            key.append(stem).append(' ');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Copy the cached features of a query's documents.
+     * @param qid the query id
+     * @param queryStems the query stems
+     * @param externalIds the external docids
+     * @param features the output features of each document
+     * @param found the output flag of each document, true if it was cached
+     * @return the number of cached documents
+     * */
+    public synchronized int lookup(int qid, String[] queryStems, String[] externalIds,
+            FeatureMatrix features, boolean[] found) {
+        QueryBlock block = queries.get(queryKey(qid, queryStems));
+        int cnt = 0;
+        for (int i = 0; i < externalIds.length; ++i) {
+            Integer row = (block == null) ? null : block.docIndex.get(externalIds[i]);
+            found[i] = (row != null);
+            if (row != null) {
+                features.setRow(i, block.rows.get(row));
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Add the features of a query's documents that were not cached.
+     * @param qid the query id
+     * @param queryStems the query stems
+     * @param externalIds the external docids
+     * @param features the features of each document
+     * @param found the flag of each document, true if it was already cached
+     * */
+    public synchronized void add(int qid, String[] queryStems, String[] externalIds,
+            FeatureMatrix features, boolean[] found) {
+        String key = queryKey(qid, queryStems);
+        QueryBlock block = queries.get(key);
+        if (block == null) {
+            block = new QueryBlock();
+            queries.put(key, block);
+        }
+        for (int i = 0; i < externalIds.length; ++i) {
+            if (!found[i] && !block.docIndex.containsKey(externalIds[i])) {
+                block.docIndex.put(externalIds[i], block.rows.size());
+                block.externalIds.add(externalIds[i]);
+                double[] row = new double[numFeatures];
+                features.getRow(i, row);
+                block.rows.add(row);
+                modified = true;
+            }
+        }
+    }
+
+    /**
+     * Read the cache file.
+     * */
+    private void read() throws IOException {
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path), 1 << 16));
+        try {
+            if (input.readInt() != MAGIC
+                    || input.readInt() != VERSION
+                    || !input.readUTF().equals(signature)
+                    || input.readInt() != numFeatures) {
+                // built under another configuration, start over
+                return;
+            }
+            int numQueries = input.readInt();
+            for (int q = 0; q < numQueries; ++q) {
+                String key = input.readUTF();
+                int numDocs = input.readInt();
+                QueryBlock block = new QueryBlock();
+                for (int i = 0; i < numDocs; ++i) {
+                    String externalId = input.readUTF();
+                    block.docIndex.put(externalId, i);
+                    block.externalIds.add(externalId);
+                    block.rows.add(new double[numFeatures]);
+                }
+                // one column per feature
+                for (int f = 0; f < numFeatures; ++f) {
+                    for (int i = 0; i < numDocs; ++i) {
+                        block.rows.get(i)[f] = input.readDouble();
+                    }
+                }
+                queries.put(key, block);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Write the cache file if features were added. The file is written
+     * next to the old one and then moved over it.
+     * @throws IOException Error accessing the file.
+     * */
+    public synchronized void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        File target = new File(path);
+        File temp = new File(path + ".tmp");
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(signature);
+            output.writeInt(numFeatures);
+            output.writeInt(queries.size());
+            for (Map.Entry<String, QueryBlock> entry : queries.entrySet()) {
+                QueryBlock block = entry.getValue();
+                output.writeUTF(entry.getKey());
+                output.writeInt(block.rows.size());
+                for (String externalId : block.externalIds) {
+                    output.writeUTF(externalId);
+                }
+                for (int f = 0; f < numFeatures; ++f) {
+                    for (double[] row : block.rows) {
+                        output.writeDouble(row[f]);
+                    }
+                }
+            }
+        } finally {
+            output.close();
+        }
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Can't replace " + path);
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Can't write " + path);
+        }
+        modified = false;
+    }
+}
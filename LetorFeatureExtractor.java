@@ -0,0 +1,360 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The feature extraction pipeline of the learning to rank model.
+ * The query-independent features are read from precomputed columns, and
+ * each document's term vectors are loaded once per field. The corpus
+ * statistics (df, ctf) of the query stems are looked up once per query,
+ * from the TermDictionary cache when a stem is in it, the query stems
+ * are probed in each term vector's stem table, and all 18 features are
+ * computed in one pass over primitive arrays.
+ * <p>
+ * The extractor keeps no per-document state, so it may be shared by
+ * threads that extract features for different documents.
+ * </p>
+ * */
+public class LetorFeatureExtractor {
+
+    /**
+     * The number of features.
+     * */
+    public static final int FEATURE_NUM = 18;
+    /**
+     * The fields of features f5 - f16, three features (BM25, Indri, overlap) per field.
+     * */
+    private static final String[] FIELDS = { "body", "title", "url", "inlink" };
+    /**
+     * The average English word length.
+     * */
+    private static final double averageEnglishLength = 5.1;
+
+    /**
+     * A query prepared for feature extraction.
+     * The distinct stems of the query are hashed once, and their
+     * dictionary ids and corpus statistics are looked up once per field.
+     * */
+    public static class PreparedQuery {
+        /**
+         * The query stems, duplicates included.
+         * */
+        private String[] tokens;
+        /**
+         * The distinct stem index of each query token.
+         * */
+        private int[] tokenToStem;
+        /**
+         * The distinct stems and their indexes.
+         * */
+        private Map<String, Integer> stemIndex;
+        /**
+         * The distinct stems, by index.
+         * */
+        private String[] stems;
+        /**
+         * The df and ctf of each distinct stem in each field.
+         * */
+        private double[][] df;
+        private double[][] ctf;
+
+        /**
+         * Get the query stems.
+         * @return the query stems
+         * */
+        public String[] getTokens() {
+            return tokens;
+        }
+    }
+
+    /**
+     * BM25 and Indri parameters.
+     * */
+    private double k1;
+    private double b;
+    private double mu;
+    private double lambda;
+    /**
+     * The number of documents in the corpus.
+     * */
+    private double N;
+    /**
+     * The average length and total length of each field.
+     * */
+    private double[] avgFieldLength;
+    private double[] fieldTermC;
+    /**
+     * The disabled features.
+     * */
+    private boolean[] featureDisable;
+    /**
+     * The index that features are extracted from.
+     * */
+    private IndexHandle index;
+    /**
+     * The PageRank scores.
+     * */
+    private PageRankStore pageRankStore;
+    /**
+     * The query-independent features f1 - f3.
+     * */
+    private StaticFeatureStore staticFeatureStore;
+
+    /**
+     * Constructor. Features are extracted from the current index.
+     * @param BM25Model the BM25 parameters
+     * @param indriModel the Indri parameters
+     * @param featureDisable_ the disabled features
+     * @param pageRankStore_ the PageRank scores
+     * @param staticFeatureStore_ the query-independent features f1 - f3
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public LetorFeatureExtractor(RetrievalModelBM25 BM25Model,
+            RetrievalModelIndri indriModel,
+            boolean[] featureDisable_,
+            PageRankStore pageRankStore_,
+            StaticFeatureStore staticFeatureStore_) throws IOException {
+
+        k1 = BM25Model.getK1();
+        b = BM25Model.getB();
+        mu = (double)indriModel.getMu();
+        lambda = indriModel.getLambda();
+        index = Idx.getCurrentIndex();
+        N = index.getNumDocs();
+        featureDisable = featureDisable_;
+        pageRankStore = pageRankStore_;
+        staticFeatureStore = staticFeatureStore_;
+
+        avgFieldLength = new double[FIELDS.length];
+        fieldTermC = new double[FIELDS.length];
+        for (int f = 0; f < FIELDS.length; ++f) {
+            fieldTermC[f] = (double)index.getSumOfFieldLengths(FIELDS[f]);
+            avgFieldLength[f] = fieldTermC[f] / (double)index.getDocCount(FIELDS[f]);
+        }
+    }
+
+    /**
+     * Get the index that features are extracted from.
+     * @return the index
+     * */
+    public IndexHandle getIndex() {
+        return index;
+    }
+
+    /**
+     * Prepare a query for feature extraction.
+     * @param queryStems the stopped and stemmed query terms
+     * @return the prepared query
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public PreparedQuery prepareQuery(String[] queryStems) throws IOException {
+        PreparedQuery q = new PreparedQuery();
+        q.tokens = queryStems;
+        q.tokenToStem = new int[queryStems.length];
+        q.stemIndex = new HashMap<String, Integer>(queryStems.length * 2);
+        for (int i = 0; i < queryStems.length; ++i) {
+            Integer idx = q.stemIndex.get(queryStems[i]);
+            if (idx == null) {
+                idx = q.stemIndex.size();
+                q.stemIndex.put(queryStems[i], idx);
+            }
+            q.tokenToStem[i] = idx;
+        }
+        // corpus statistics of each distinct stem in each field; a stem that
+        // is not in the dictionary is asked from the index and not added, so
+        // misspelled and unseen query terms do not grow the dictionary
+        q.stems = new String[q.stemIndex.size()];
+        q.df = new double[FIELDS.length][q.stemIndex.size()];
+        q.ctf = new double[FIELDS.length][q.stemIndex.size()];
+        for (Map.Entry<String, Integer> entry : q.stemIndex.entrySet()) {
+            q.stems[entry.getValue()] = entry.getKey();
+            for (int f = 0; f < FIELDS.length; ++f) {
+                TermDictionary dictionary = index.getTermDictionary(FIELDS[f]);
+                int id = dictionary.lookup(entry.getKey());
+                if (id >= 0) {
+                    q.df[f][entry.getValue()] = dictionary.df(id);
+                    q.ctf[f][entry.getValue()] = dictionary.ctf(id);
+                } else {
+                    q.df[f][entry.getValue()] = index.getDocFreq(FIELDS[f], entry.getKey());
+                    q.ctf[f][entry.getValue()] = index.getTotalTermFreq(FIELDS[f], entry.getKey());
+                }
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Extract the features of a document. A feature that does not apply
+     * or is disabled is NaN.
+     * @param q the prepared query
+     * @param docid the internal docid
+     * @param features the output features, of length FEATURE_NUM
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public void extract(PreparedQuery q, int docid, double[] features) throws IOException {
+        Arrays.fill(features, Double.NaN);
+
+        // f1: Spam score for d (precomputed from the index).
+        if (!featureDisable[0]) {
+            features[0] = staticFeatureStore.getSpamScore(docid);
+        }
+        // f2: Url depth for d (number of '/' in the rawUrl field).
+        if (!featureDisable[1]) {
+            features[1] = staticFeatureStore.getUrlDepth(docid);
+        }
+        // f3: FromWikipedia score for d (1 if the rawUrl contains "wikipedia.org", otherwise 0).
+        if (!featureDisable[2]) {
+            features[2] = staticFeatureStore.getWikipediaScore(docid);
+        }
+
+        // f4: PageRank score for d (read from file).
+        if (!featureDisable[3]) {
+            Double pageRank = pageRankStore.getScore(docid);
+            if (pageRank != null) {
+                features[3] = pageRank;
+            }
+        }
+
+        // f5 - f16: BM25, Indri and term overlap for each field.
+        // f17, f18: average length deviation and query vagueness of the body.
+        int[] tf = new int[q.stemIndex.size()];
+        for (int f = 0; f < FIELDS.length; ++f) {
+            int base = 4 + 3 * f;
+            boolean needCustom = (f == 0) && (!featureDisable[16] || !featureDisable[17]);
+            if (featureDisable[base] && featureDisable[base + 1]
+                    && featureDisable[base + 2] && !needCustom) {
+                continue;
+            }
+            // positions are never used, so the term vector is decoded without them
+            TermVector tv = TermVectorCache.get(index, docid, FIELDS[f], false);
+            // the features of an empty field do not apply
+            if (tv.stemsLength() == 0) {
+                continue;
+            }
+            // the query stems are probed in the term vector's stem table, so
+            // the document's stems never enter the term dictionary
+            for (int k = 0; k < q.stems.length; ++k) {
+                int s = tv.indexOfStem(q.stems[k]);
+                tf[k] = (s < 0) ? 0 : tv.stemFreq(s);
+            }
+            // one pass over the term vector for the word length deviation
+            double lengthDeviation = 0.0;
+            for (int s = 1; s < tv.stemsLength(); ++s) {
+                double difference = tv.stemString(s).length() - averageEnglishLength;
+                lengthDeviation += difference * difference;
+            }
+            double docLength = index.getFieldLength(FIELDS[f], docid);
+
+            if (!featureDisable[base]) {
+                features[base] = scoreBM25(q, f, tf, docLength);
+            }
+            if (!featureDisable[base + 1]) {
+                features[base + 1] = scoreIndri(q, f, tf, docLength);
+            }
+            if (!featureDisable[base + 2]) {
+                features[base + 2] = overlap(q, tf);
+            }
+            if (f == 0) {
+                if (!featureDisable[16]) {
+                    features[16] = Math.sqrt(lengthDeviation);
+                }
+                if (!featureDisable[17]) {
+                    features[17] = termFreqDeviation(q, tf);
+                }
+            }
+        }
+    }
+
+    /**
+     * The BM25 score of the query in a field.
+     * @param q the prepared query
+     * @param f the field number
+     * @param tf the tf of each distinct query stem
+     * @param docLength the field length
+     * @return the BM25 score
+     * */
+    private double scoreBM25(PreparedQuery q, int f, int[] tf, double docLength) {
+        double score = 0.0;
+        for (int i = 0; i < q.tokens.length; ++i) {
+            int stem = q.tokenToStem[i];
+            if (tf[stem] > 0) {
+                double df = q.df[f][stem];
+                double first = Math.max(0.0, Math.log((N - df + 0.5) / (df + 0.5)));
+                double second = tf[stem] / (tf[stem] + k1 * ((1 - b) + b * docLength / avgFieldLength[f]));
+                score += first * second;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * The Indri score of the query in a field. It is 0 if no query stem matches.
+     * @param q the prepared query
+     * @param f the field number
+     * @param tf the tf of each distinct query stem
+     * @param docLength the field length
+     * @return the Indri score
+     * */
+    private double scoreIndri(PreparedQuery q, int f, int[] tf, double docLength) {
+        boolean notMatchAnyTerm = true;
+        for (int i = 0; i < tf.length; ++i) {
+            if (tf[i] > 0) { notMatchAnyTerm = false; }
+        }
+        if (notMatchAnyTerm) {return 0.0;}
+
+        double score = 1.0;
+        for (int i = 0; i < q.tokens.length; ++i) {
+            int stem = q.tokenToStem[i];
+            double pMLE = q.ctf[f][stem] / fieldTermC[f];
+            double leftSmooth = (1.0 - lambda) * (tf[stem] + mu * pMLE) / (mu + docLength);
+            double rightSmooth = lambda * pMLE;
+            score *= leftSmooth + rightSmooth;
+        }
+        return Math.pow(score, 1.0 / ((double)q.tokens.length));
+    }
+
+    /**
+     * The fraction of query tokens that occur in a field.
+     * @param q the prepared query
+     * @param tf the tf of each distinct query stem
+     * @return the overlap score
+     * */
+    private static double overlap(PreparedQuery q, int[] tf) {
+        int cnt = 0;
+        for (int i = 0; i < q.tokens.length; ++i) {
+            if (tf[q.tokenToStem[i]] > 0) { cnt++; }
+        }
+        return (double)cnt / (double)q.tokens.length;
+    }
+
+    /**
+     * The deviation of the query token frequencies from their average
+     * over the matching tokens (query vagueness). It does not apply
+     * if no query token matches.
+     * @param q the prepared query
+     * @param tf the tf of each distinct query stem
+     * @return the deviation, or NaN if it does not apply
+     * */
+    private static double termFreqDeviation(PreparedQuery q, int[] tf) {
+        int sum = 0;
+        int cnt = 0;
+        for (int i = 0; i < q.tokens.length; ++i) {
+            int curr = tf[q.tokenToStem[i]];
+            if (curr > 0) {
+                cnt++;
+                sum += curr;
+            }
+        }
+        if (cnt == 0) {
+            return Double.NaN;
+        }
+        double avgTf = (double)sum / cnt;
+        double deviation = 0.0;
+        for (int i = 0; i < q.tokens.length; ++i) {
+            double diff = avgTf - tf[q.tokenToStem[i]];
+            deviation += diff * diff;
+        }
+        return Math.sqrt(deviation);
+    }
+}
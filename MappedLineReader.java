@@ -0,0 +1,117 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A line reader over a memory-mapped text file.
+ * The file is mapped in large windows, so the large auxiliary files
+ * (rankings, PageRank scores) are scanned without going through
+ * a Reader and its per-character decoding.
+ * */
+public class MappedLineReader implements Closeable {
+
+    /**
+     * The size of one mapping window.
+     * */
+    private static final long WINDOW_SIZE = 1L << 30;
+    /**
+     * The channel of the mapped file.
+     * */
+    private FileChannel channel;
+    /**
+     * The size of the mapped file.
+     * */
+    private long fileSize;
+    /**
+     * The current mapping window.
+     * */
+    private MappedByteBuffer window;
+    /**
+     * The file offset where the next window begins.
+     * */
+    private long nextWindowStart;
+    /**
+     * The bytes of the line being read, reused across lines.
+     * */
+    private byte[] lineBytes;
+
+    /**
+     * Open and map a text file.
+     * @param filePath the file path
+     * @throws IOException Error accessing the file.
+     * */
+    public MappedLineReader(String filePath) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filePath, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        nextWindowStart = 0;
+        lineBytes = new byte[256];
+        mapNextWindow();
+    }
+
+    /**
+     * Map the next window of the file.
+     * @return true if there is a window to read, false at the end of the file
+     * */
+    private boolean mapNextWindow() throws IOException {
+        if (nextWindowStart >= fileSize) {
+            window = null;
+            return false;
+        }
+        long size = Math.min(WINDOW_SIZE, fileSize - nextWindowStart);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, nextWindowStart, size);
+        nextWindowStart += size;
+        return true;
+    }
+
+    /**
+     * Read the next line, without its line terminator.
+     * @return the line, or null at the end of the file
+     * @throws IOException Error accessing the file.
+     * */
+    public String readLine() throws IOException {
+        if (window == null) {
+            return null;
+        }
+        int length = 0;
+        boolean sawAnyByte = false;
+        while (true) {
+            if (!window.hasRemaining() && !mapNextWindow()) {
+                break;
+            }
+            byte b = window.get();
+            sawAnyByte = true;
+            if (b == '\n') {
+                break;
+            }
+            if (length == lineBytes.length) {
+                byte[] larger = new byte[lineBytes.length * 2];
+                System.arraycopy(lineBytes, 0, larger, 0, length);
+                lineBytes = larger;
+            }
+            lineBytes[length++] = b;
+        }
+        // the end of the file right after the last line terminator
+        if (!sawAnyByte) {
+            return null;
+        }
+        // strip the carriage return of windows line endings
+        if (length > 0 && lineBytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Close the mapped file.
+     * @throws IOException Error accessing the file.
+     * */
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
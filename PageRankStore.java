@@ -0,0 +1,95 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The PageRank feature store for learning to rank.
+ * The PageRank text file ("externalid\tscore" per line) is parsed once
+ * into a float array indexed by internal docid. The array is persisted
+ * as a sidecar file next to the index, so later runs only map it back in.
+ * */
+public class PageRankStore {
+
+    /**
+     * The default suffix of the sidecar file, appended to the index path.
+     * */
+    private static final String SIDECAR_SUFFIX = ".pagerank";
+
+    /**
+     * The PageRank scores, indexed by internal docid. NaN means no score.
+     * */
+    private float[] scores;
+
+    /**
+     * Constructor.
+     * @param scores_ the PageRank scores indexed by internal docid
+     * */
+    private PageRankStore(float[] scores_) {
+        scores = scores_;
+    }
+
+    /**
+     * Open the PageRank store for the current index. The sidecar file is
+     * used if it was built from the same PageRank file and the same index,
+     * otherwise the text file is parsed and the sidecar is rebuilt.
+     * @param pageRankFile the file path to the PageRank text file
+     * @param sidecarFile the sidecar file path, or null to put it next to the index
+     * @return the store
+     * @throws IOException Error accessing the files or the index.
+     * */
+    public static PageRankStore open(String pageRankFile, String sidecarFile)
+            throws IOException {
+
+        if (sidecarFile == null) {
+            sidecarFile = Idx.getIndexPath() + SIDECAR_SUFFIX;
+        }
+        int maxDoc = Idx.getMaxDoc();
+        // the scores are stored by internal docid, which a rebuilt index reassigns
+        long signature = DocColumnStore.fileSignature(new File(pageRankFile)) * 31
+                + Idx.getIndexSignature();
+
+        DocColumnStore store = DocColumnStore.read(sidecarFile, 1, maxDoc, signature);
+        if (store == null) {
+            store = build(pageRankFile, maxDoc);
+            store.write(sidecarFile, signature);
+        }
+        return new PageRankStore(store.getColumn(0));
+    }
+
+    /**
+     * Parse the PageRank text file into a single column store.
+     * @param pageRankFile the file path to the PageRank text file
+     * @param maxDoc the size of the column
+     * @return the column store
+     * */
+    private static DocColumnStore build(String pageRankFile, int maxDoc)
+            throws IOException {
+
+        DocColumnStore store = new DocColumnStore(1, maxDoc);
+        float[] column = store.getColumn(0);
+
+        MappedLineReader reader = new MappedLineReader(pageRankFile);
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            int tab = line.indexOf('\t');
+            if (tab < 0) {
+                continue;
+            }
+            int docid = Idx.lookupInternalDocid(line.substring(0, tab));
+            if (docid >= 0) {
+                column[docid] = Float.parseFloat(line.substring(tab + 1).trim());
+            }
+        }
+        reader.close();
+        return store;
+    }
+
+    /**
+     * Get the PageRank score of a document.
+     * @param docid the internal docid
+     * @return the score, or null if the document has no PageRank score
+     * */
+    public Double getScore(int docid) {
+        float score = scores[docid];
+        return Float.isNaN(score) ? null : (double)score;
+    }
+}
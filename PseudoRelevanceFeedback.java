@@ -5,13 +5,9 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This is the class for providing pseudo relevance feedback query expansion.
@@ -26,9 +22,19 @@ public class PseudoRelevanceFeedback {
     private int fbTerms;
     private double fbMu;
     private double fbOrigWeight;
+    /**
+     * The pool that decodes the feedback documents in parallel, or null
+     * to decode them one by one.
+     * */
+    private ForkJoinPool pool;
+    /**
+     * The index that the feedback documents are read from.
+     * */
+    private IndexHandle index;
     
     /**
-     * Constructor for feedback service.
+     * Constructor for feedback service. The feedback documents are read
+     * from the index that is current when the service is created.
      * @param fbDocs_ the provided fbDocs
      * @param fbTerms_ the provided fbTerms
      * @param fbMu_ the provided fbMu
@@ -40,13 +46,28 @@ public class PseudoRelevanceFeedback {
         fbTerms = fbTerms_;
         fbMu = fbMu_;
         fbOrigWeight = fbOrigWeight_;
+        index = Idx.getCurrentIndex();
+    }
+
+    /**
+     * Constructor for feedback service that processes the feedback documents in parallel.
+     * @param fbDocs_ the provided fbDocs
+     * @param fbTerms_ the provided fbTerms
+     * @param fbMu_ the provided fbMu
+     * @param fbOrigWeight_ the provided fbOrigWeight
+     * @param pool_ the pool that processes the feedback documents, or null for none
+     * */
+    public PseudoRelevanceFeedback(int fbDocs_, int fbTerms_,
+            double fbMu_, double fbOrigWeight_, ForkJoinPool pool_) {
+        this(fbDocs_, fbTerms_, fbMu_, fbOrigWeight_);
+        pool = pool_;
     }
     
     /**
      * The private nested class for a learned query.
      * It records the term and score for a query.
      * */
-    private class LearnedTerm implements Comparable<LearnedTerm> {
+    protected class LearnedTerm implements Comparable<LearnedTerm> {
         /**
          * The term itself.
          * */
@@ -96,31 +117,6 @@ public class PseudoRelevanceFeedback {
     }
         
     
-    /**
-     *  getScore for the Indri retrieval model.
-     *  @param termCtf the term ctf
-     *  @param termC the length of tokens over a collection
-     *  @param term the term 
-     *  @param tv the forward list
-     *  @param docid the document id
-     *  @return the feedback indri score
-     *  @throws IOException Error accessing the Lucene index
-     */
-    private double getTermScoreIndri(double termCtf, double termC, String term, TermVector tv, int docid) throws IOException {
-        int termIndex = tv.indexOfStem(term);
-        double tf = (termIndex > -1) ? tv.stemFreq(termIndex) : 0.0;
-        double docLength = Idx.getFieldLength("body", docid);
-        double indriScore = 0.0;
-        double pMLE = (fbMu == 0.0) ? 0.0 : (termCtf / termC);
-        if (tf == 0.0 && fbMu == 0.0) { return 0.0; }
-        else if (fbMu == 0.0) {
-            indriScore = tf / docLength;
-        } else {
-            indriScore = (tf + fbMu * pMLE) / (fbMu + docLength);
-        }
-        return indriScore;
-    }
-    
     /**
      * Get the score for a document for each original query.
      * @param r the original query score list
@@ -131,80 +127,156 @@ public class PseudoRelevanceFeedback {
         return r.getDocidScore(docIndex);
     }
     
+    /**
+     * The fork-join task that decodes a range of feedback documents and
+     * computes each document's contributions to A(t) into its own map.
+     * */
+    private class FeedbackDocumentTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private ScoreList r;
+        private IntDoubleMap[] partials;
+        private double[] docWeights;
+        private int begin;
+        private int end;
+
+        private FeedbackDocumentTask(ScoreList r_, IntDoubleMap[] partials_,
+                double[] docWeights_, int begin_, int end_) {
+            r = r_;
+            partials = partials_;
+            docWeights = docWeights_;
+            begin = begin_;
+            end = end_;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin > 1) {
+                int mid = (begin + end) >>> 1;
+                invokeAll(new FeedbackDocumentTask(r, partials, docWeights, begin, mid),
+                        new FeedbackDocumentTask(r, partials, docWeights, mid, end));
+                return;
+            }
+            try {
+                int docid = r.getDocid(begin);
+                TermVector tv = TermVectorCache.get(index, docid, "body", false);
+                docWeights[begin] = getDocumentWeight(r, begin);
+                partials[begin] = new IntDoubleMap(tv.stemsLength());
+                accumulate(partials[begin], tv, docWeights[begin]);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * The weight s(d) / (mu + |d|) of a feedback document.
+     * @param r the original score list
+     * @param docIndex the index of the document in the score list
+     * @return the weight
+     * */
+    private double getDocumentWeight(ScoreList r, int docIndex) throws IOException {
+        return getOriginalScore(r, docIndex) / (fbMu + index.getFieldLength("body", r.getDocid(docIndex)));
+    }
+
+    /**
+     * Add the contributions tf * weight of a document's terms to A(t).
+     * A term that is not valid for expansion is NaN.
+     * @param accumulated the A(t) by term id
+     * @param tv the forward list of the document
+     * @param docWeight the weight of the document
+     * */
+    private void accumulate(IntDoubleMap accumulated, TermVector tv, double docWeight) {
+        int len = tv.stemsLength();
+        for (int currIndex = 1; currIndex < len; ++currIndex) {
+            int id = tv.stemId(currIndex);
+            if (!accumulated.containsKey(id)) {
+                accumulated.put(id, isValidTerm(tv.stemString(currIndex)) ? 0.0 : Double.NaN);
+            }
+            accumulated.add(id, tv.stemFreq(currIndex) * docWeight);
+        }
+    }
+
     /**
      * See if a term is valid for expansion.
      * @return true if valid, false otherwise
      * */
-    private boolean isValidTerm(String term) {
+    protected boolean isValidTerm(String term) {
         return !(term == null || term.isEmpty() || term.contains(".") || term.contains(","));
     }
     
     /**
      * Produce fbDocs number of learned query and recorded in data structure.
+     * <p>
+     * A term t is scored as the sum over the feedback documents d of
+     * p(t|d) * s(d) * log(|C| / ctf(t)), where p(t|d) is the Indri
+     * estimate (tf + mu * ctf / |C|) / (mu + |d|). This splits into
+     * log(|C| / ctf(t)) * (A(t) + mu * ctf / |C| * B), with
+     * A(t) = sum of tf * s(d) / (mu + |d|) over the documents that contain t,
+     * and B = sum of s(d) / (mu + |d|) over all documents. A(t) is
+     * accumulated in one pass over each term vector, and the smoothing of
+     * the documents without t is the closed form term.
+     * </p>
      * @param r the original score list
-     * @return the list of learned query
+     * @return the list of learned query, highest score first
      * */
-    public PriorityQueue<LearnedTerm> produceExpandTerms(ScoreList r) throws IOException {
-        // use heap to keep a certain number and order 
-        PriorityQueue<LearnedTerm> expandTerms = new PriorityQueue<LearnedTerm>(fbTerms);
+    public List<LearnedTerm> produceExpandTerms(ScoreList r) throws IOException {
         // document numbers
         int documentToInspect = Math.min(r.size(), fbDocs);
-        // hash the document id and its index in score list
-        Map<Integer, Integer> docidToIndex = new HashMap<Integer, Integer>(documentToInspect);
-        for (int i = 0; i < documentToInspect; ++i) {
-            docidToIndex.put(r.getDocid(i), i);
-        }
-        // get all document ids
-        Set<Integer> docidSet = docidToIndex.keySet();
-        // create forward list
-        List<TermVector> docTermVector = new ArrayList<TermVector>(documentToInspect);
-        for (Integer docid : docidSet) {
-            docTermVector.add(new TermVector(docid, "body"));
-        }
-        // cache the ctf for terms
-        Map<String, Double> termCtf = new TreeMap<String, Double>();
-        // collect all terms
-        Set<String> potentialTerms = new TreeSet<String>();
-        for (TermVector tv : docTermVector) {
-            // begin iterating the forward list
-            int len = tv.stemsLength();
-            for (int currIndex = 1; currIndex < len; ++currIndex) {
-                // get the term
-                String currTerm = tv.stemString(currIndex);
-                // see if valid
-                if (isValidTerm(currTerm)) {
-                    potentialTerms.add(currTerm);
-                    // collect its ctf
-                    if (!termCtf.containsKey(currTerm)) {
-                        termCtf.put(currTerm, new Double(tv.totalStemFreq(currIndex)));
+        // the accumulated A(t) by term id; invalid terms are NaN
+        IntDoubleMap accumulated = new IntDoubleMap(1024);
+        double smoothingMass = 0.0;
+        if (pool == null || documentToInspect < 2) {
+            // one pass over each forward list
+            for (int i = 0; i < documentToInspect; ++i) {
+                TermVector tv = TermVectorCache.get(index, r.getDocid(i), "body", false);
+                double docWeight = getDocumentWeight(r, i);
+                smoothingMass += docWeight;
+                accumulate(accumulated, tv, docWeight);
+            }
+        } else {
+            // decode the documents in parallel, then merge in rank order,
+            // which adds up each A(t) in the same order as above
+            IntDoubleMap[] partials = new IntDoubleMap[documentToInspect];
+            double[] docWeights = new double[documentToInspect];
+            pool.invoke(new FeedbackDocumentTask(r, partials, docWeights, 0, documentToInspect));
+            for (int i = 0; i < documentToInspect; ++i) {
+                smoothingMass += docWeights[i];
+                for (int id : partials[i].keys()) {
+                    double contribution = partials[i].get(id, 0.0);
+                    if (!accumulated.containsKey(id)) {
+                        accumulated.put(id, Double.isNaN(contribution) ? Double.NaN : 0.0);
                     }
+                    accumulated.add(id, contribution);
                 }
             }
         }
-        // cache term length
-        double termC = Idx.getSumOfFieldLengths("body");
-        // begin to calculate score
-        for (String term : potentialTerms) {
-            double ctf = termCtf.get(term);
-            double expandWeight = Math.log(termC / ctf);
-            double score = 0.0;
-            // sum over all documents
-            for (TermVector tv : docTermVector) {
-                int docid = tv.docId;
-                score += 
-                        getTermScoreIndri(ctf, termC, term, tv, docid) * 
-                        getOriginalScore(r, docidToIndex.get(docid)) * 
-                        expandWeight;
-                
+        // keep the fbTerms best valid terms; equal scores go to the alphabetically first term
+        final TermDictionary dictionary = index.getTermDictionary("body");
+        TopKSelector selector = new TopKSelector(fbTerms, new TopKSelector.TieBreaker() {
+            @Override
+            public int compare(int a, int b) {
+                return dictionary.stem(a).compareTo(dictionary.stem(b));
             }
-            // add into the expansion terms list
-            expandTerms.add(new LearnedTerm(term, score));
-            // maintain the heap size
-            if (expandTerms.size() > fbTerms) {
-                expandTerms.poll();
+        });
+        // cache term length
+        double termC = index.getSumOfFieldLengths("body");
+        for (int id : accumulated.keys()) {
+            if (Double.isNaN(accumulated.get(id, Double.NaN))) {
+                continue;
             }
+            double ctf = dictionary.ctf(id);
+            double expandWeight = Math.log(termC / ctf);
+            // without smoothing, a document without the term adds nothing
+            double smoothing = (fbMu == 0.0) ? 0.0 : fbMu * (ctf / termC) * smoothingMass;
+            double score = expandWeight * (accumulated.get(id, 0.0) + smoothing);
+            selector.offer(id, score);
+        }
+        // only the selected terms become learned terms
+        selector.sort();
+        List<LearnedTerm> expandTerms = new ArrayList<LearnedTerm>(selector.size());
+        for (int i = 0; i < selector.size(); ++i) {
+            expandTerms.add(new LearnedTerm(dictionary.stem(selector.getKey(i)), selector.getScore(i)));
         }
-        
         return expandTerms;
     }
     
@@ -214,8 +286,16 @@ public class PseudoRelevanceFeedback {
      * @return the converted string
      * */
     public String produceExpandQuery(ScoreList r) throws IOException {
-        // get the heap
-        PriorityQueue<LearnedTerm> expandTerms = produceExpandTerms(r);
+        // get the terms in score order
+        return produceExpandQuery(produceExpandTerms(r));
+    }
+
+    /**
+     * Convert the expansion terms into a string.
+     * @param expandTerms the expansion terms, as produceExpandTerms returns them
+     * @return the converted string
+     * */
+    public String produceExpandQuery(List<LearnedTerm> expandTerms) {
         // specify output format
         DecimalFormat decimalFormat = new DecimalFormat("0.0000");
         
@@ -267,6 +347,55 @@ public class PseudoRelevanceFeedback {
                       ")";
     }
     
+    /**
+     * Build the expanded query as a query tree, a #WAND of the expansion
+     * terms in the body field with their full precision weights. It has
+     * no arguments if there are no expansion terms.
+     * @param expandTerms the expansion terms, as produceExpandTerms returns them
+     * @return the expanded query, not initialized
+     * */
+    public QrySopWAnd produceExpandQry(List<LearnedTerm> expandTerms) {
+        QrySopWAnd expandQry = new QrySopWAnd();
+        expandQry.setDisplayName("#WAND");
+        for (LearnedTerm lt : expandTerms) {
+            expandQry.appendWeights(lt.getScore());
+            expandQry.appendArg(new QryIopTerm(lt.getTerm()));
+        }
+        return expandQry;
+    }
+
+    /**
+     * Combine the original query and the expanded query into a query tree,
+     * #WAND (w original (1-w) expand). The subtrees are used as they are,
+     * so initialized subtrees are not evaluated again. An expanded query
+     * without arguments would score every document NaN in the #WAND, so
+     * the original query is returned alone instead, as optimizeQuery does
+     * with the parsed #wand (w original (1-w) #wand ()).
+     * @param originalQry the original query
+     * @param expandQry the expanded query
+     * @return the combined query
+     * */
+    public Qry produceCombinedQry(Qry originalQry, QrySopWAnd expandQry) {
+        if (expandQry.args.size() == 0) {
+            return originalQry;
+        }
+        QrySopWAnd combinedQry = new QrySopWAnd();
+        combinedQry.setDisplayName("#WAND");
+        combinedQry.appendWeights(fbOrigWeight);
+        combinedQry.appendArg(originalQry);
+        combinedQry.appendWeights(1.0 - fbOrigWeight);
+        combinedQry.appendArg(expandQry);
+        return combinedQry;
+    }
+    
+    /**
+     * Getter for the index that the feedback documents are read from.
+     * @return the index
+     * */
+    public IndexHandle getIndex() {
+        return index;
+    }
+
     /**
      * Getter for fbDocs.
      * @return fbDocs
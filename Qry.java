@@ -100,6 +100,15 @@ public abstract class Qry {
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
+  //  The arguments in the order docIteratorHasMatchAll visits them,
+  //  cheapest first.  It is computed on first use, after initialization.
+
+  private Qry[] conjunctionOrder = null;
+
+  //  The index that the query was initialized with.
+
+  protected IndexHandle index = null;
+
   //  --------------- Methods ---------------------------------------
   
   /**
@@ -109,6 +118,8 @@ public abstract class Qry {
    */
   public void appendArg(Qry q) throws IllegalArgumentException {
 
+    this.conjunctionOrder = null;
+
     //  The query parser and query operator type system are too simple
     //  to detect some kinds of query syntax errors.  appendArg does
     //  additional syntax checking while creating the query tree.  It
@@ -208,6 +219,74 @@ public abstract class Qry {
     this.docIteratorClearMatchCache ();
   }
 
+  /**
+   *  Move the internal document iterator back to the first document,
+   *  so that an initialized query can be evaluated again, e.g., as a
+   *  subtree of another query, without initializing it again.
+   */
+  public void docIteratorReset () {
+
+    for (Qry q_i: this.args) {
+      q_i.docIteratorReset ();
+    }
+
+    this.docIteratorClearMatchCache ();
+  }
+
+  /**
+   *  Estimate the number of documents that the query matches, for
+   *  example, to choose the argument that leads a conjunction.  The
+   *  default is the estimate of a disjunction, the sum over the
+   *  arguments.  It is only meaningful after initialization.
+   *  @return The estimated number of matching documents.
+   */
+  public long docIteratorCost () {
+
+    long cost = 0;
+
+    for (Qry q_i: this.args) {
+      cost += q_i.docIteratorCost ();
+    }
+
+    return cost;
+  }
+
+  /**
+   *  Get the arguments ordered by ascending docIteratorCost; arguments
+   *  with equal costs keep their order.  A conjunction that is led by
+   *  its cheapest argument only visits the documents of the rarest
+   *  list, and skips the others forward with docIteratorAdvanceTo.
+   *  @return The arguments, cheapest first.
+   */
+  protected Qry[] getConjunctionOrder () {
+
+    if (this.conjunctionOrder == null ||
+        this.conjunctionOrder.length != this.args.size ()) {
+      final Qry[] order = this.args.toArray (new Qry[this.args.size ()]);
+      final long[] costs = new long[order.length];
+      Integer[] index = new Integer[order.length];
+
+      for (int i=0; i<order.length; i++) {
+        costs[i] = order[i].docIteratorCost ();
+        index[i] = i;
+      }
+
+      Arrays.sort (index, new Comparator<Integer> () {
+        public int compare (Integer a, Integer b) {
+          return Long.compare (costs[a], costs[b]);
+        }
+      });
+
+      this.conjunctionOrder = new Qry[order.length];
+
+      for (int i=0; i<order.length; i++) {
+        this.conjunctionOrder[i] = order[index[i]];
+      }
+    }
+
+    return this.conjunctionOrder;
+  }
+
   /**
    *  Clear the docIterator's matching docid cache.  The cache should
    *  be cleared whenever a docIterator is advanced.
@@ -249,13 +328,16 @@ public abstract class Qry {
 
     boolean matchFound = false;
 
+    // The cheapest argument leads; the others are advanced to it.
+
+    Qry[] order = this.getConjunctionOrder ();
+    Qry q_0 = order[0];
+
     // Keep trying until a match is found or no match is possible.
 
     while (! matchFound) {
 
-      // Get the docid of the first query argument.
-      
-      Qry q_0 = this.args.get (0);
+      // Get the docid of the lead query argument.
 
       if (! q_0.docIteratorHasMatch (r)) {
 	return false;
@@ -263,13 +345,13 @@ public abstract class Qry {
 
       int docid_0 = q_0.docIteratorGetMatch ();
 
-      // Other query arguments must match the docid of the first query
+      // Other query arguments must match the docid of the lead query
       // argument.
       
       matchFound = true;
 
-      for (int i=1; i<this.args.size(); i++) {
-	Qry q_i = this.args.get(i);
+      for (int i=1; i<order.length; i++) {
+	Qry q_i = order[i];
 
 	q_i.docIteratorAdvanceTo (docid_0);
 
@@ -383,13 +465,38 @@ public abstract class Qry {
   }
 
   /**
-   *  Initialize the query operator (and its arguments), including any
-   *  internal iterators; this method must be called before iteration
-   *  can begin.
+   *  Get the index that the query was initialized with.  A query that
+   *  was assembled from initialized subqueries, and not initialized
+   *  itself, uses the current index.
+   *  @return The index.
+   */
+  public IndexHandle getIndex () {
+    return (this.index != null) ? this.index : Idx.getCurrentIndex ();
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments) with the
+   *  current index, including any internal iterators; this method
+   *  must be called before iteration can begin.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize(RetrievalModel r) throws IOException {
+    this.initialize (r, Idx.getCurrentIndex ());
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments) with an index,
+   *  including any internal iterators; this method must be called
+   *  before iteration can begin.  The query reads its inverted lists
+   *  and statistics from that index only, so queries initialized with
+   *  different indexes can be evaluated concurrently.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index that the query is evaluated against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public abstract void initialize(RetrievalModel r) throws IOException;
+  public abstract void initialize(RetrievalModel r, IndexHandle index)
+    throws IOException;
 
   /**
    *  Removes an argument from the list of query operator arguments.
@@ -397,6 +504,7 @@ public abstract class Qry {
    */
   public void removeArg (int i) {
     this.args.remove(i);
+    this.conjunctionOrder = null;
   };
 
   /**
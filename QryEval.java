@@ -4,6 +4,7 @@
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -62,23 +63,40 @@ public class QryEval {
         //  Open the index and initialize the retrieval model.
 
         Idx.open (parameters.get ("indexPath"));
+        if (parameters.containsKey("termVectorCacheSize")) {
+            TermVectorCache.configure(Integer.parseInt(parameters.get("termVectorCacheSize")));
+        }
         RetrievalModel model = (parameters.containsKey("retrievalAlgorithm")) ? 
                 initializeRetrievalModel(parameters) : null;
 
         
                 
-        if (model != null && model instanceof RetrievalModelLetor) {
-            // machine learning training model
-            ((RetrievalModelLetor)model).trainThenProcessQuery(parameters);
-            
-        } else {
-            // normal ranking model
-            //  Perform experiments.
-            processQueryFile(parameters, model);
+        if (parameters.containsKey("trecEvalOutputFormat")) {
+            resultFormat = parameters.get("trecEvalOutputFormat").toLowerCase();
+        }
+        QryRewriter.configure("true".equals(parameters.get("queryRewrite")),
+                "true".equals(parameters.get("queryRewriteExplain")));
+
+        try {
+            if (model != null && model instanceof RetrievalModelLetor) {
+                // machine learning training model
+                ((RetrievalModelLetor)model).trainThenProcessQuery(parameters);
+
+            } else {
+                // normal ranking model
+                //  Perform experiments.
+                processQueryFile(parameters, model);
+            }
+        } finally {
+            //  Clean up.
+
+            closeResultSinks();
         }
-        //  Clean up.
 
         timer.stop ();
+        if (parameters.containsKey("termVectorCacheSize")) {
+            System.out.println (TermVectorCache.statistics());
+        }
         System.out.println ("Time:  " + timer);
     }
 
@@ -170,26 +188,52 @@ public class QryEval {
     static ScoreList processQuery(String qString, RetrievalModel model)
             throws IOException {
 
+        return processQuery (parseQuery (qString, model), model);
+    }
+
+    /**
+     *  Parse a query, wrapped in the default operator of the model.
+     *  @param qString A string that contains a query.
+     *  @param model The retrieval model determines how matching and scoring is done.
+     *  @return The query tree, or null if the query is empty.
+     *  @throws IOException Error accessing the index
+     */
+    static Qry parseQuery(String qString, RetrievalModel model)
+            throws IOException {
+
         String defaultOp = model.defaultQrySopName ();
         qString = defaultOp + "(" + qString + ")";
         Qry q = QryParser.getQuery (qString);
+        StringBuilder explanation = QryRewriter.isExplained () ? new StringBuilder () : null;
+        q = QryRewriter.rewrite (q, model, explanation);
 
         // Show the query that is evaluated
 
+        if (explanation != null) {
+            System.out.print(explanation);
+        }
         System.out.println("    --> " + q);
 
+        return q;
+    }
+
+    /**
+     *  Initialize and evaluate a parsed query.
+     *  @param q The query tree, or null.
+     *  @param model The retrieval model determines how matching and scoring is done.
+     *  @return Search results, or null if the query is null.
+     *  @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(Qry q, RetrievalModel model)
+            throws IOException {
+
         if (q != null) {
             ScoreList r = new ScoreList ();
 
             if (q.args.size () > 0) {		// Ignore empty queries
 
                 q.initialize (model);
-                while (q.docIteratorHasMatch (model)) {
-                    int docid = q.docIteratorGetMatch ();
-                    double score = ((QrySop) q).getScore (model);
-                    r.add (docid, score);
-                    q.docIteratorAdvancePast (docid);
-                }
+                r = evaluateQuery (q, model);
             }
             r.sort();
             return r;
@@ -197,162 +241,279 @@ public class QryEval {
             return null;
     }
 
+    /**
+     *  Evaluate an initialized query.
+     *  @param q The initialized query tree.
+     *  @param model The retrieval model determines how matching and scoring is done.
+     *  @return Search results, sorted
+     *  @throws IOException Error accessing the index
+     */
+    static ScoreList evaluateQuery(Qry q, RetrievalModel model)
+            throws IOException {
+
+        ScoreList r = new ScoreList (q.getIndex ());
+
+        while (q.docIteratorHasMatch (model)) {
+            int docid = q.docIteratorGetMatch ();
+            double score = ((QrySop) q).getScore (model);
+            r.add (docid, score);
+            q.docIteratorAdvancePast (docid);
+        }
+        r.sort();
+        return r;
+    }
+
     /**
      *  Process the query file.
      *  @param queryFilePath
      *  @param model
      * @throws Exception 
      */
-    static void processQueryFile(Map<String, String> parameters,
-            RetrievalModel model)
+    static void processQueryFile(final Map<String, String> parameters,
+            final RetrievalModel model)
                     throws Exception {
 
-        String outFilePath = parameters.get("trecEvalOutputPath");
+        final String outFilePath = parameters.get("trecEvalOutputPath");
         String queryFilePath = parameters.get("queryFilePath");
 
-
-        BufferedReader input = null;
+        // see if feedback service is specified
+        final boolean hasFeedback = 
+                parameters.containsKey("fb") && parameters.get("fb").equals("true");
+        // see if we need diversity
+        final boolean hasDiversity = 
+                parameters.containsKey("diversity") && parameters.get("diversity").equals("true");
+
+        // the feedback documents of a query are processed in parallel if fbThreads > 1
+        int fbThreads = parameters.containsKey("fbThreads") ?
+                Integer.parseInt(parameters.get("fbThreads")) : 1;
+        final ForkJoinPool feedbackPool = (hasFeedback && fbThreads > 1) ? new ForkJoinPool(fbThreads) : null;
+        // the expansion model: indri (default), or the relevance models rm1 and rm3,
+        // which read the feedback documents from a forward index opened on first use
+        final String fbModel = parameters.containsKey("fbModel") ?
+                parameters.get("fbModel").toLowerCase() : "indri";
+        if (!fbModel.equals("indri") && !fbModel.equals("rm1") && !fbModel.equals("rm3")) {
+            throw new IllegalArgumentException("Unknown fbModel " + fbModel);
+        }
+        final ForwardIndex[] forwardIndex = new ForwardIndex[1];
 
         try {
-            String qLine = null;
-
-            input = new BufferedReader(new FileReader(queryFilePath));
-
-            //  Each pass of the loop processes one query.
-
-            while ((qLine = input.readLine()) != null) {
-                int d = qLine.indexOf(':');
+            // the query file is read and parsed ahead of evaluation, and the
+            // results are written behind it; diversity queries are not parsed,
+            // their rankings come from the query and its intents
+            QueryPipeline pipeline = new QueryPipeline(queryFilePath, model, !hasDiversity);
+            QueryPipeline.Evaluator evaluator;
+            if (hasDiversity) {
+                evaluator = diversityEvaluator(parameters, model);
+            } else if (hasFeedback) {
+                evaluator = feedbackEvaluator(parameters, model, feedbackPool, fbModel, forwardIndex);
+            } else {
+                evaluator = new QueryPipeline.Evaluator() {
+                    @Override
+                    public ScoreList evaluate(QueryPipeline.ParsedQuery q) throws IOException {
+                        startQuery(q);
+                        System.out.println("    --> " + q.getQry());
+                        ScoreList r = processQuery(q.getQry(), model);
+                        endQuery(r);
+                        return r;
+                    }
+                };
+            }
 
-                if (d < 0) {
-                    throw new IllegalArgumentException
-                    ("Syntax error:  Missing ':' in query line.");
+            // write the retrieval results to a file in trec_eval input format
+            pipeline.run(evaluator, new QueryPipeline.Output() {
+                @Override
+                public void write(String qid, ScoreList r) throws IOException {
+                    printResults(null, outFilePath, qid, r);
                 }
+            });
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (feedbackPool != null) {
+                feedbackPool.shutdown();
+            }
+            if (forwardIndex[0] != null) {
+                forwardIndex[0].close();
+            }
+        }
+    }
 
-                printMemoryUsage(false);
-
-                String qid = qLine.substring(0, d);
-                String query = qLine.substring(d + 1);
+    /**
+     *  Report the start of a query.
+     */
+    private static void startQuery(QueryPipeline.ParsedQuery q) {
+        printMemoryUsage(false);
+        System.out.println("Query " + q.getLine());
+        if (q.getExplanation() != null) {
+            System.out.print(q.getExplanation());
+        }
+    }
 
-                System.out.println("Query " + qLine);
+    /**
+     *  Report the end of a query.
+     */
+    private static void endQuery(ScoreList r) {
+        if (r != null) {
+            System.out.println();
+        }
+    }
 
-                ScoreList r = null;
-                // see if feedback service is specified
-                boolean hasFeedback = 
-                        parameters.containsKey("fb") && parameters.get("fb").equals("true");
-                // see if we need diversity
-                boolean hasDiversity = 
-                        parameters.containsKey("diversity") && parameters.get("diversity").equals("true");
-                
-                
-                if (!hasDiversity) {
-                    // if no diversity
-                    // use the query to retrieve documents
-                    r = processQuery(query, model);
+    /**
+     *  The evaluation of diversified queries.
+     *  @param parameters The parameters of the run.
+     *  @param model The retrieval model of the query and its intents.
+     *  @return The evaluator.
+     */
+    private static QueryPipeline.Evaluator diversityEvaluator(final Map<String, String> parameters,
+            final RetrievalModel model) {
+
+        final boolean hasInitialRankingFile = parameters.containsKey("diversity:initialRankingFile");
+        // get all parameters
+        final int maxInputRankingsLength 
+            = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
+        final int maxResultRankingLength
+            = Integer.parseInt(parameters.get("diversity:maxResultRankingLength"));
+        final QueryDiversification.DiverseAlgorithm da 
+            = parameters.get("diversity:algorithm").equals("PM2") ? 
+                (QueryDiversification.DiverseAlgorithm.PM2)
+                : (QueryDiversification.DiverseAlgorithm.xQuAD);
+        final double lambda = Double.parseDouble(parameters.get("diversity:lambda"));
+        final String intentsFile = parameters.get("diversity:intentsFile");
+
+        return new QueryPipeline.Evaluator() {
+            // the diversification inputs are loaded once, on the first query
+            private DiversificationLoader diversityInputs = null;
+
+            @Override
+            public ScoreList evaluate(QueryPipeline.ParsedQuery q) throws Exception {
+                startQuery(q);
+                QueryDiversification qd = new QueryDiversification(maxInputRankingsLength, 
+                        maxResultRankingLength, 
+                        da,
+                        lambda);
+                if (diversityInputs == null) {
+                    diversityInputs = DiversificationLoader.load(intentsFile,
+                            parameters.get("diversity:initialRankingFile"),
+                            parameters.get("diversity:initialRankingCacheFile"));
+                }
+                // the number of queries
+                int nqid = Integer.parseInt(q.getQid());
+                // get all intents
+                List<String> allqItents = diversityInputs.getIntents(nqid);
+                // update the intents
+                qd.setqIntent(allqItents);
+                // get all ranking scores
+                List<Map<Integer, Double>> allRankingFile = null;
+                if (hasInitialRankingFile) {
+                    // read relevance-based document rankings for query q 
+                    // from the the diversity:initialRankingFile file;
+                    // read relevance-based document rankings for 
+                    // query intents q.i from the diversity:initialRankingFile file;
+                    allRankingFile
+                        = diversityInputs.getInitialRankings(nqid, maxInputRankingsLength);
                 } else {
-                    // has diversity
-                    boolean hasInitialRankingFile = parameters.containsKey("diversity:initialRankingFile");
-                    // get all parameters
-                    int maxInputRankingsLength 
-                        = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
-                    int maxResultRankingLength
-                        = Integer.parseInt(parameters.get("diversity:maxResultRankingLength"));
-                    QueryDiversification.DiverseAlgorithm da 
-                        = parameters.get("diversity:algorithm").equals("PM2") ? 
-                            (QueryDiversification.DiverseAlgorithm.PM2)
-                            : (QueryDiversification.DiverseAlgorithm.xQuAD);
-                    double lambda = Double.parseDouble(parameters.get("diversity:lambda"));
-                    String intentsFile = parameters.get("diversity:intentsFile");
-                    
-                    QueryDiversification qd = new QueryDiversification(maxInputRankingsLength, 
-                            maxResultRankingLength, 
-                            da,
-                            lambda);
-                    // the number of queries
-                    int nqid = Integer.parseInt(qid);
-                    // get all intents
-                    List<String> allqItents
-                        = QueryDiversification.processAllIntents(intentsFile, nqid);
-                    // update the intents
-                    qd.setqIntent(allqItents);
-                   // get all ranking scores
-                    List<Map<Integer, Double>> allRankingFile = null;
-                    if (hasInitialRankingFile) {
-                        // read relevance-based document rankings for query q 
-                        // from the the diversity:initialRankingFile file;
-                        // read relevance-based document rankings for 
-                        // query intents q.i from the diversity:initialRankingFile file;
-                        String initialRankingFile = parameters.get("diversity:initialRankingFile");
-                        
-                        allRankingFile
-                            = QueryDiversification.processInitialRankingFile(initialRankingFile, nqid);
-                    } else {
-                        // read query q from the query file
-                        // use query q to retrieve documents;
-                        // for each of query q's intents
-                        // read intent qi from the diversity:intentsFile file;
-                        // use query qi to retrieve documents;
-                        allRankingFile
-                            = QueryDiversification.processRankingWithQuery(query, allqItents, model);
-                    }
-                    // use the diversity:algorithm to produce a diversified ranking;
-                    r = qd.runDiversification(allRankingFile);
-                    r.sort();
+                    // read query q from the query file
+                    // use query q to retrieve documents;
+                    // for each of query q's intents
+                    // read intent qi from the diversity:intentsFile file;
+                    // use query qi to retrieve documents;
+                    allRankingFile
+                        = QueryDiversification.processRankingWithQuery(q.getQuery(), allqItents, model);
                 }
-                
-                
-                
+                // use the diversity:algorithm to produce a diversified ranking;
+                ScoreList r = qd.runDiversification(allRankingFile);
+                r.sort();
+                endQuery(r);
+                return r;
+            }
+        };
+    }
+
+    /**
+     *  The evaluation of queries with pseudo relevance feedback.
+     *  @param parameters The parameters of the run.
+     *  @param model The retrieval model.
+     *  @param feedbackPool The pool of the feedback documents, or null.
+     *  @param fbModel The expansion model: indri, rm1 or rm3.
+     *  @param forwardIndex The forward index of rm1 and rm3, opened on first use.
+     *  @return The evaluator.
+     */
+    private static QueryPipeline.Evaluator feedbackEvaluator(final Map<String, String> parameters,
+            final RetrievalModel model, final ForkJoinPool feedbackPool, final String fbModel,
+            final ForwardIndex[] forwardIndex) {
+
+        // see if has provided feedback ranking file
+        final boolean hasFbInitialRank = parameters.containsKey("fbInitialRankingFile");
+        // get parameters
+        final int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
+        final int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
+        final double fbMu = Double.parseDouble(parameters.get("fbMu"));
+        final double fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
+        final String expansionQueryFile = parameters.get("fbExpansionQueryFile");
+
+        return new QueryPipeline.Evaluator() {
+            @Override
+            public ScoreList evaluate(QueryPipeline.ParsedQuery q) throws Exception {
+                startQuery(q);
                 //String experiment = "-Exp2-" + qid;
                 String experiment = null;
-                if (!hasDiversity) {
-                    if (!hasFeedback) {
-                        // if no feedback
-                        // produce query immediately
-                        r = processQuery(query, model);
-                    } else {
-                        // see if has provided feedback ranking file
-                        boolean hasFbInitialRank = parameters.containsKey("fbInitialRankingFile");
-    
-                        if (hasFbInitialRank) {
-                            // read a document ranking in trec-eval input format
-                            r = readFeedbackRankFile(qid, parameters.get("fbInitialRankingFile"));
-                        } else {
-                            // produce query for feedback
-                            r = processQuery(query, model);
-                        }
-                        // get parameters
-                        int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
-                        int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
-                        double fbMu = Double.parseDouble(parameters.get("fbMu"));
-                        double fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
-                        String expansionQueryFile = parameters.get("fbExpansionQueryFile");
-                        
-                        // the pseudo relevance feedback service
-                        PseudoRelevanceFeedback prf = new PseudoRelevanceFeedback(fbDocs, fbTerms, fbMu, fbOrigWeight);
-    
-                        // use the Indri query expansion algorithm to produce an expanded query
-                        String expandQuery = prf.produceExpandQuery(r);
-                        // write the expanded query to a file specified by the parameter
-                        prf.printExpandQueryOut(experiment, expansionQueryFile, Integer.parseInt(qid), expandQuery);
-                        // create a combined query
-                        String defaultOp = model.defaultQrySopName ();
-                        query = defaultOp + "(" + query + ")";
-                        String combinedQuery = prf.produceCombinedQuery(query, expandQuery);
-                        // use the combined query to retrieve documents
-                        r = processQuery(combinedQuery, model);
+                String qid = q.getQid();
+
+                // the original query is kept to be a subtree of the combined query
+                Qry originalQry = q.getQry();
+                System.out.println("    --> " + originalQry);
+                boolean hasOriginalQry = originalQry != null && originalQry.args.size() > 0;
+                ScoreList r;
+                if (hasFbInitialRank) {
+                    // read a document ranking in trec-eval input format
+                    r = readFeedbackRankFile(qid, parameters.get("fbInitialRankingFile"));
+                    if (hasOriginalQry) {
+                        originalQry.initialize(model);
+                    }
+                } else {
+                    // produce query for feedback
+                    r = processQuery(originalQry, model);
+                }
+
+                // the pseudo relevance feedback service
+                PseudoRelevanceFeedback prf;
+                if (fbModel.equals("indri")) {
+                    prf = new PseudoRelevanceFeedback(fbDocs, fbTerms, fbMu, fbOrigWeight, feedbackPool);
+                } else {
+                    if (forwardIndex[0] == null) {
+                        forwardIndex[0] = ForwardIndex.open(parameters.get("fbForwardIndexFile"), "body");
                     }
+                    prf = new RelevanceModelFeedback(fbDocs, fbTerms, fbMu, fbOrigWeight,
+                            forwardIndex[0], fbModel.equals("rm3"));
                 }
-                
-                // write the retrieval results to a file in trec_eval input format
-                if (r != null) {
-                    printResults(experiment, outFilePath, qid, r);
-                    System.out.println();
+
+                // use the Indri query expansion algorithm to produce an expanded query;
+                // the printed query and the query tree are built from the same terms
+                List<PseudoRelevanceFeedback.LearnedTerm> expandTerms = prf.produceExpandTerms(r);
+                String expandQuery = prf.produceExpandQuery(expandTerms);
+                // write the expanded query to a file specified by the parameter
+                prf.printExpandQueryOut(experiment, expansionQueryFile, Integer.parseInt(qid), expandQuery);
+                // create a combined query from the initialized original query,
+                // whose inverted lists are rewound instead of read again
+                QrySopWAnd expandQry = prf.produceExpandQry(expandTerms);
+                if (expandQry.args.size() > 0) {
+                    expandQry.initialize(model);
                 }
+                Qry combinedQry = expandQry;
+                if (hasOriginalQry) {
+                    originalQry.docIteratorReset();
+                    // without expansion terms this is the original query alone
+                    combinedQry = prf.produceCombinedQry(originalQry, expandQry);
+                }
+                System.out.println("    --> " + combinedQry);
+                // use the combined query to retrieve documents; an empty
+                // query, with no expansion terms either, matches nothing
+                r = (combinedQry.args.size() == 0) ? new ScoreList()
+                        : evaluateQuery(combinedQry, model);
+                endQuery(r);
+                return r;
             }
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        } finally {
-            input.close();
-        }
+        };
     }
 
     /**
@@ -369,24 +530,45 @@ public class QryEval {
      *          A list of document ids and scores
      * @throws IOException Error accessing the Lucene index.
      */
-    static String QUERY_RESULT_FORMAT = "%d Q0 %s %d %.18f HW4\n";
-    static String DUMMY_RESULT = "10 Q0 dummy 1 0 HW4\n";
     static void printResults(String append, String outFilePath, String queryName, ScoreList result) throws IOException { 
         
         if (append != null) {
             String[] filenames = outFilePath.split("\\.");
             outFilePath = filenames[0] + append + "." + filenames[1];
         }
-        
-        PrintWriter writer = new PrintWriter(new FileOutputStream(new File(outFilePath), true));
-        if (result.size() < 1) {
-            writer.print(DUMMY_RESULT);
-        } else {
-            for (int i = 0; i < Math.min(result.size(), 100); i++) {
-                writer.format(QUERY_RESULT_FORMAT, Integer.parseInt(queryName), Idx.getExternalDocid(result.getDocid(i)), i + 1, result.getDocidScore(i));
+
+        // the sink of each output file stays open for the run
+        ResultSink sink;
+        synchronized (resultSinks) {
+            sink = resultSinks.get(outFilePath);
+            if (sink == null) {
+                sink = new ResultSink(outFilePath, resultFormat);
+                resultSinks.put(outFilePath, sink);
+            }
+        }
+        sink.write(Integer.parseInt(queryName), result);
+    }
+
+    /**
+     * The format of the result files, ResultSink.FORMAT_TREC or FORMAT_BINARY.
+     * */
+    private static String resultFormat = ResultSink.FORMAT_TREC;
+    /**
+     * The open result sinks by output file.
+     * */
+    private static Map<String, ResultSink> resultSinks = new HashMap<String, ResultSink>();
+
+    /**
+     * Write out and close the result files.
+     * @throws IOException Error writing the files.
+     */
+    static void closeResultSinks() throws IOException {
+        synchronized (resultSinks) {
+            for (ResultSink sink : resultSinks.values()) {
+                sink.close();
             }
+            resultSinks.clear();
         }
-        writer.close();
     }
 
     /**
@@ -70,11 +70,7 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    this.docIteratorIndex = this.searchDocid (docid, true);
     this.locIteratorIndex = 0;
   }
 
@@ -85,11 +81,72 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
+    this.docIteratorIndex = this.searchDocid (docid, false);
+    this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Find the first posting at or after the docIterator whose docid is
+   *  at least (or, if past is true, greater than) docid.  The search
+   *  gallops forward from the docIterator in steps that double, then
+   *  searches the last step in halves, so skipping n postings costs
+   *  O(log n) comparisons, e.g., when a rare term leads a conjunction
+   *  with a frequent one.
+   *  @param docid The document's internal document id
+   *  @param past True to skip docid itself
+   *  @return The index of the posting, or df if there is none
+   */
+  private int searchDocid (int docid, boolean past) {
+
+    int df = this.invertedList.df;
+    int lo = this.docIteratorIndex;	// postings before lo are skipped
+
+    if ((lo >= df) || ! this.isBefore (lo, docid, past)) {
+      return lo;
+    }
+
+    //  Gallop: lo is before docid, hi is not (or is df).
+
+    int step = 1;
+    int hi = lo + 1;
+
+    while ((hi < df) && this.isBefore (hi, docid, past)) {
+      lo = hi;
+      step <<= 1;
+      hi = (df - lo > step) ? lo + step : df;
+    }
+
+    //  Binary search between lo and hi.
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.isBefore (mid, docid, past)) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
     }
-           
+
+    return hi;
+  }
+
+  /**
+   *  See if the i'th posting comes before docid (or, if past is true,
+   *  is not after it).
+   */
+  private boolean isBefore (int i, int docid, boolean past) {
+    int d = this.invertedList.getDocid (i);
+    return past ? (d <= docid) : (d < docid);
+  }
+
+  /**
+   *  Move the query operator's internal iterator back to the first
+   *  document of its inverted list.  The inverted list is already
+   *  materialized, so the arguments are not reset.
+   */
+  public void docIteratorReset () {
+    this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
   }
 
@@ -149,6 +206,15 @@ public abstract class QryIop extends Qry {
   public int getDf () {
     return this.invertedList.df;
   }
+
+  /**
+   *  The cost of an inverted list operator is its df, which is exact
+   *  once the list is materialized.
+   *  @return The document frequency (df), or 0 before initialization.
+   */
+  public long docIteratorCost () {
+    return (this.invertedList == null) ? 0 : this.invertedList.df;
+  }
   
   
 
@@ -172,13 +238,17 @@ public abstract class QryIop extends Qry {
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model (that is ignored)
+   *  @param index The index that the query is evaluated against
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexHandle index)
+    throws IOException {
+
+    this.index = index;
 
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).initialize (r, index);
     }
 
     //  Evaluate the operator.
@@ -95,9 +95,11 @@ public abstract class QryIopProximity extends QryIop {
 
     /**
      * This function evaluates the proximity operator in general.
-     * It uses the matchAll function from Qry and modifies the code accordingly.
-     * When all documents are the same, then it uses processPosition() to argument
-     * the inverted list.
+     * It uses the matchAll function from Qry and modifies the code accordingly:
+     * the argument with the shortest inverted list leads, and the others are
+     * advanced to its documents. When all documents are the same, then it uses
+     * processPosition() to argument the inverted list; the location iterators
+     * are still visited in the argument order.
      * */
     protected void evaluateGeneral() throws IOException {
         this.invertedList = new InvList(this.getField());
@@ -106,19 +108,21 @@ public abstract class QryIopProximity extends QryIop {
             return;
         } else {
             boolean matchFound = false;
+            // the cheapest argument leads
+            Qry[] order = this.getConjunctionOrder();
+            Qry q_0 = order[0];
             // Keep trying until a match is found or no match is possible.
             while (true) {
-                // Get the docid of the first query argument.
-                Qry q_0 = this.args.get(0);
+                // Get the docid of the lead query argument.
                 if (!q_0.docIteratorHasMatch(null)) {
                     return;
                 }
                 int docid_0 = q_0.docIteratorGetMatch();
-                // Other query arguments must match the docid of the first query
+                // Other query arguments must match the docid of the lead query
                 // argument.
                 matchFound = true;
-                for (int i = 1; i < this.args.size(); i++) {
-                    Qry q_i = this.args.get(i);
+                for (int i = 1; i < order.length; i++) {
+                    Qry q_i = order[i];
                     q_i.docIteratorAdvanceTo (docid_0);
                     if (!q_i.docIteratorHasMatch(null)) {    // If any argument is exhausted
                         return;             // there are no more matches.
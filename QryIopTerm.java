@@ -35,13 +35,21 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string.
+   *  @return The term.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field); 
+    this.invertedList = new InvList(this.index, this.term, this.field); 
   }
 
   /**
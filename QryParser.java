@@ -6,7 +6,6 @@
 import java.io.*;
 import java.util.*;
 
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.util.Version;
@@ -24,9 +23,9 @@ import org.apache.lucene.util.Version;
  * <li>createOperator: Use a string (e.g., #and) to create a node (e.g.,
  * QrySopAnd).
  *
- * <li>parseString: If the operator supports term weights (e.g., #wsum (0.5
- * apple 1 pie)), you must modify this method. For these operators, two
- * substrings (weight and term) are popped from the query string at each step,
+ * <li>parseOperator: If the operator supports term weights (e.g., #wsum (0.5
+ * apple 1 pie)), it must extend QrySopWeight. For these operators, two
+ * tokens (weight and term) are read from the query string at each step,
  * instead of one.
  * </ul>
  * <p>
@@ -40,6 +39,22 @@ public class QryParser {
 
     private static final EnglishAnalyzerConfigurable ANALYZER = new EnglishAnalyzerConfigurable(Version.LUCENE_43);
 
+    /**
+     * The tokens of recently tokenized strings, most recently used last.
+     * Strings longer than TOKEN_CACHE_MAX_LENGTH are not cached.
+     */
+    private static final int TOKEN_CACHE_SIZE = 16384;
+    private static final int TOKEN_CACHE_MAX_LENGTH = 128;
+    private static final Map<String, String[]> TOKEN_CACHE =
+            new LinkedHashMap<String, String[]>(1024, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                    return size() > TOKEN_CACHE_SIZE;
+                }
+            };
+
     // -------------------- Initialization -------------------------
 
     static {
@@ -50,27 +65,6 @@ public class QryParser {
 
     // ----------- Methods, in alphabetical order ------------------
 
-    /**
-     * Count the number of occurrences of character c in string s.
-     * 
-     * @param c
-     *            A character.
-     * @param s
-     *            A string.
-     */
-    private static int countChars(String s, char c) {
-
-        int count = 0;
-
-        for (int i = 0; i < s.length(); i++) {
-            if (s.charAt(i) == c) {
-                count++;
-            }
-        }
-
-        return count;
-    }
-
     /**
      * Create the desired query operator.
      * 
@@ -202,32 +196,6 @@ public class QryParser {
         return q;
     }
 
-    /**
-     * Get the index of the right parenenthesis that balances the left-most
-     * parenthesis. Return -1 if it doesn't exist.
-     * 
-     * @param s
-     *            A string containing a query.
-     */
-    private static int indexOfBalencingParen(String s) {
-
-        int depth = 0;
-
-        for (int i = 0; i < s.length(); i++) {
-            if (s.charAt(i) == '(') {
-                depth++;
-            } else if (s.charAt(i) == ')') {
-                depth--;
-
-                if (depth == 0) {
-                    return i;
-                }
-            }
-        }
-
-        return -1;
-    }
-
     /**
      * Optimize the query by removing degenerate nodes produced during query
      * parsing, for example '#NEAR/1 (of the)' which turns into '#NEAR/1 ()'
@@ -287,7 +255,9 @@ public class QryParser {
     }
 
     /**
-     * Parse a query string into a query tree.
+     * Parse a query string into a query tree. The string is read once,
+     * left to right, by a cursor; each operator and its arguments are
+     * parsed by parseOperator, which recurses on subqueries.
      * 
      * @param queryString
      *            The query string, in an Indri-style query language.
@@ -299,136 +269,106 @@ public class QryParser {
      */
     private static Qry parseString(String queryString) throws IOException, IllegalArgumentException {
 
-        // This simple parser is sensitive to parenthensis placement, so
-        // check for basic errors first.
+        QueryCursor cursor = new QueryCursor(queryString);
 
-        queryString = queryString.trim(); // The last character should be ')'
-
-        if ((countChars(queryString, '(') == 0) || (countChars(queryString, '(') != countChars(queryString, ')'))
-                || (indexOfBalencingParen(queryString) != (queryString.length() - 1))) {
-            syntaxError("Missing, unbalanced, or misplaced parentheses");
+        cursor.skipWhitespace();
+        if (cursor.atEnd()) {
+            syntaxError("Empty query");
         }
 
-        // The query language is prefix-oriented, so the query string can
-        // be processed left to right. At each step, a substring is
-        // popped from the head (left) of the string, and is converted to
-        // a Qry object that is added to the query tree. Subqueries are
-        // handled via recursion.
+        Qry queryTree = parseOperator(cursor);
 
-        // Find the left-most query operator and start the query tree.
+        cursor.skipWhitespace();
+        if (!cursor.atEnd()) {
+            syntaxError("Unexpected '" + cursor.peek() + "' after the query at position " + cursor.pos);
+        }
 
-        String[] substrings = queryString.split("[(]", 2);
-        Qry queryTree = createOperator(substrings[0].trim());
+        return queryTree;
+    }
 
-        // Start consuming queryString by removing the query operator and
-        // its terminating ')'. queryString is always the part of the
-        // query that hasn't been processed yet.
+    /**
+     * Parse an operator and its arguments, e.g., "#and(a #or(b c))". The
+     * cursor is at the operator name, and is left after its ')'.
+     * 
+     * @param cursor
+     *            The cursor over the query string.
+     * @return Qry The query tree of the operator.
+     * @throws IOException
+     *             Error accessing the Lucene index.
+     */
+    private static Qry parseOperator(QueryCursor cursor) throws IOException {
 
-        queryString = substrings[1];
-        queryString = queryString.substring(0, queryString.lastIndexOf(")")).trim();
+        // The operator name is everything up to its '(', e.g., "#near/3".
+
+        int start = cursor.pos;
+        String name = cursor.readUntilParen().trim();
+        if (!name.startsWith("#")) {
+            syntaxError("Expected a query operator at position " + start);
+        }
+        if (cursor.atEnd() || cursor.peek() != '(') {
+            syntaxError("Missing '(' after operator " + name + " at position " + cursor.pos);
+        }
+        Qry queryTree = createOperator(name);
+        int open = cursor.pos++;
 
         // Each pass below handles one argument to the query operator.
         // Note: An argument can be a token that produces multiple terms
         // (e.g., "near-death") or a subquery (e.g., "#and (a b c)").
-        // Recurse on subqueries.
+        // Operators that use weighted arguments read "weight arg" pairs.
 
-        while (queryString.length() > 0) {
+        boolean isWeightOperator = queryTree instanceof QrySopWeight;
 
-            // If the operator uses weighted query arguments, each pass of
-            // this loop must handle "weight arg". Handle the weight first.
+        while (true) {
+            cursor.skipWhitespace();
+            if (cursor.atEnd()) {
+                syntaxError("Missing ')' for the '(' at position " + open);
+            }
+            if (cursor.peek() == ')') {
+                cursor.pos++;
+                return queryTree;
+            }
 
-            // STUDENT HW2 CODE GOES HERE
-            
-            // Now handle the argument (which could be a subquery).            
-            Qry[] qargs = null;
             Double weight = 0.0;
-            boolean isWeightOperator = queryTree instanceof QrySopWeight;
-            PopData<String, String> p;
-
-            if (queryString.charAt(0) != '#') {
-                p = popTerm(queryString);
-                String curr = p.getPopped();
-                if (isWeightOperator && isDouble(curr)) {
-                    weight = Double.parseDouble(curr);
-                    // go to the term argument
-                    queryString = p.getRemaining().trim();
-                    p = popTerm(queryString);
-                    curr = p.getPopped();
+            if (isWeightOperator && cursor.peek() != '#') {
+                int weightPos = cursor.pos;
+                String token = cursor.readToken();
+                if (isDouble(token)) {
+                    try {
+                        weight = Double.parseDouble(token);
+                    } catch (NumberFormatException e) {
+                        syntaxError("Invalid weight " + token + " at position " + weightPos);
+                    }
+                    cursor.skipWhitespace();
+                    if (cursor.atEnd() || cursor.peek() == ')') {
+                        syntaxError("Missing argument after weight " + token + " at position " + weightPos);
+                    }
+                } else {
+                    // not a weight, so it is the argument
+                    cursor.pos = weightPos;
                 }
             }
-            
-            if (queryString.charAt(0) == '#') { // Subquery
-                p = popSubquery(queryString);
-                qargs = new Qry[1];
-                qargs[0] = parseString(p.getPopped());
+
+            // Now handle the argument (which could be a subquery).
+
+            Qry[] qargs;
+            if (cursor.peek() == '#') { // Subquery
+                qargs = new Qry[] { parseOperator(cursor) };
+            } else if (cursor.peek() == '(') {
+                syntaxError("Unexpected '(' at position " + cursor.pos);
+                return null;
             } else { // Term
-                p = popTerm(queryString);       
-                String curr = p.getPopped();
-                qargs = createTerms(curr);
-                
+                qargs = createTerms(cursor.readToken());
             }
 
-            queryString = p.getRemaining().trim(); // Consume the arg
             // Add the argument(s) to the query tree.
 
             for (int i = 0; i < qargs.length; i++) {
-
-                // STUDENTS WILL NEED TO ADJUST THIS BLOCK TO HANDLE WEIGHTS IN
-                // HW2
                 if (isWeightOperator) {
-                    ((QrySopWeight)queryTree).appendWeights(weight);
+                    ((QrySopWeight) queryTree).appendWeights(weight);
                 }
                 queryTree.appendArg(qargs[i]);
             }
         }
-
-        return queryTree;
-    }
-
-    /**
-     * Remove a subQuery from an argument string. Return the subquery and the
-     * modified argument string.
-     * 
-     * @param String
-     *            A partial query argument string, e.g., "#and(a b) c d".
-     * @return PopData<String,String> The subquery string and the modified
-     *         argString (e.g., "#and(a b)" and "c d".
-     */
-    static private PopData<String, String> popSubquery(String argString) {
-
-        int i = indexOfBalencingParen(argString);
-
-        if (i < 0) { // Query syntax error. The parser
-            i = argString.length(); // handles it. Here, just don't fail.
-        }
-
-        String subquery = argString.substring(0, i + 1);
-        argString = argString.substring(i + 1);
-
-        return new PopData<String, String>(subquery, argString);
-    }
-
-    /**
-     * Remove a term from an argument string. Return the term and the modified
-     * argument string.
-     * 
-     * @param String
-     *            A partial query argument string, e.g., "a b c d".
-     * @return PopData<String,String> The term string and the modified argString
-     *         (e.g., "a" and "b c d".
-     */
-    static private PopData<String, String> popTerm(String argString) {
-
-        String[] substrings = argString.split("[ \t\n\r]+", 2);
-        String token = substrings[0];
-
-        if (substrings.length < 2) { // Is this the last argument?
-            argString = "";
-        } else {
-            argString = substrings[1];
-        }
-
-        return new PopData<String, String>(substrings[0], argString);
     }
 
     /**
@@ -456,20 +396,96 @@ public class QryParser {
      */
     public static String[] tokenizeString(String query) throws IOException {
 
-        TokenStreamComponents comp = ANALYZER.createComponents("dummy", new StringReader(query));
-        TokenStream tokenStream = comp.getTokenStream();
-
-        CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
-        tokenStream.reset();
+        boolean cacheable = query.length() <= TOKEN_CACHE_MAX_LENGTH;
+        if (cacheable) {
+            String[] cached;
+            synchronized (TOKEN_CACHE) {
+                cached = TOKEN_CACHE.get(query);
+            }
+            if (cached != null) {
+                return cached.clone();
+            }
+        }
 
+        // tokenStream reuses the tokenizer and filter chain of the calling
+        // thread, so it is safe for concurrent parsing
+        TokenStream tokenStream = ANALYZER.tokenStream("dummy", new StringReader(query));
         List<String> tokens = new ArrayList<String>();
 
-        while (tokenStream.incrementToken()) {
-            String term = charTermAttribute.toString();
-            tokens.add(term);
+        try {
+            CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+
+            while (tokenStream.incrementToken()) {
+                String term = charTermAttribute.toString();
+                tokens.add(term);
+            }
+            tokenStream.end();
+        } finally {
+            tokenStream.close();
         }
 
-        return tokens.toArray(new String[tokens.size()]);
+        String[] result = tokens.toArray(new String[tokens.size()]);
+        if (cacheable) {
+            synchronized (TOKEN_CACHE) {
+                TOKEN_CACHE.put(query, result.clone());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A position in a query string, advanced as the query is parsed.
+     */
+    private static class QueryCursor {
+
+        private final String text;
+        private int pos = 0;
+
+        QueryCursor(String text) {
+            this.text = text;
+        }
+
+        boolean atEnd() {
+            return pos >= text.length();
+        }
+
+        char peek() {
+            return text.charAt(pos);
+        }
+
+        void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        /**
+         * Read a term or weight: the characters up to whitespace or a
+         * parenthesis.
+         */
+        String readToken() {
+            int start = pos;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (Character.isWhitespace(c) || c == '(' || c == ')') {
+                    break;
+                }
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        /**
+         * Read an operator name: the characters up to a parenthesis.
+         */
+        String readUntilParen() {
+            int start = pos;
+            while (pos < text.length() && text.charAt(pos) != '(' && text.charAt(pos) != ')') {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
     }
 
 }
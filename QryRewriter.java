@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cost based rewriting stage that runs after QryParser.optimizeQuery.
+ * A rewrite is applied only where it leaves every document score, and
+ * so the ranking, exactly as it was under the retrieval model:
+ * <ul>
+ * <li>Nested operators of the same type are flattened: #AND in #AND and
+ * #OR in #OR for the boolean models and BM25 (min, max and conjunction are
+ * associative), and #SYN in #SYN for every model.</li>
+ * <li>Duplicate arguments of #AND and #OR are merged for the boolean
+ * models and BM25, where min(a, a) = max(a, a) = a.</li>
+ * <li>The arguments of #AND are ordered by ascending document frequency
+ * for the boolean models and BM25, so the rarest list leads
+ * docIteratorHasMatchAll.</li>
+ * <li>Arguments that match no document are dropped from #OR (the boolean
+ * models and BM25), #SUM (BM25) and #SYN (every model), which skip the
+ * arguments that do not match.</li>
+ * </ul>
+ * <p>
+ * Indri's geometric and arithmetic means and the weighted operators
+ * are left as they are, since regrouping, merging or removing their
+ * arguments changes the mean, and #NEAR and #WINDOW keep their argument
+ * order. The rewriting is enabled by the queryRewrite parameter, and
+ * queryRewriteExplain prints the query before and after it.
+ * </p>
+ * */
+public class QryRewriter {
+
+    private static boolean enabled = false;
+    private static boolean explain = false;
+
+    /**
+     * Configure the rewriting.
+     * @param enabled_ true to rewrite queries
+     * @param explain_ true to explain the rewriting of each query
+     * */
+    public static void configure(boolean enabled_, boolean explain_) {
+        enabled = enabled_;
+        explain = explain_;
+    }
+
+    /**
+     * See if the rewriting is explained.
+     * @return true if rewrite produces an explanation
+     * */
+    public static boolean isExplained() {
+        return enabled && explain;
+    }
+
+    /**
+     * The estimated number of matching documents of each node.
+     * */
+    private Map<Qry, Long> costs = new IdentityHashMap<Qry, Long>();
+    private RetrievalModel model;
+    /**
+     * The index whose statistics estimate the costs.
+     * */
+    private IndexHandle index;
+    private int flattened = 0;
+    private int merged = 0;
+    private int reordered = 0;
+    private int dropped = 0;
+
+    private QryRewriter(RetrievalModel model_, IndexHandle index_) {
+        model = model_;
+        index = index_;
+    }
+
+    /**
+     * Rewrite a parsed query for the current index, if the rewriting is enabled.
+     * @param q the parsed query, or null
+     * @param r the retrieval model the query is evaluated with
+     * @param explanation where to append the explanation, or null
+     * @return the rewritten query, which may be q itself
+     * @throws IOException Error accessing the index
+     * */
+    public static Qry rewrite(Qry q, RetrievalModel r, StringBuilder explanation) throws IOException {
+        if (!enabled || q == null) {
+            return q;
+        }
+        return rewrite(q, r, Idx.getCurrentIndex(), explanation);
+    }
+
+    /**
+     * Rewrite a parsed query, if the rewriting is enabled.
+     * @param q the parsed query, or null
+     * @param r the retrieval model the query is evaluated with
+     * @param index the index the query is evaluated against
+     * @param explanation where to append the explanation, or null
+     * @return the rewritten query, which may be q itself
+     * @throws IOException Error accessing the index
+     * */
+    public static Qry rewrite(Qry q, RetrievalModel r, IndexHandle index,
+            StringBuilder explanation) throws IOException {
+        if (!enabled || q == null) {
+            return q;
+        }
+        QryRewriter rewriter = new QryRewriter(r, index);
+        String before = null;
+        if (explanation != null && explain) {
+            rewriter.cost(q);
+            before = rewriter.format(q, true);
+        }
+        q = rewriter.rewriteNode(q);
+        if (before != null) {
+            explanation.append("    rewrite before: ").append(before).append('\n');
+            explanation.append("    rewrite after:  ").append(rewriter.format(q, true)).append('\n');
+            explanation.append("    rewrite steps:  flattened ").append(rewriter.flattened)
+                    .append(", merged ").append(rewriter.merged)
+                    .append(", reordered ").append(rewriter.reordered)
+                    .append(", dropped ").append(rewriter.dropped).append('\n');
+        }
+        return q;
+    }
+
+    private boolean isBoolean() {
+        return model instanceof RetrievalModelUnrankedBoolean
+                || model instanceof RetrievalModelRankedBoolean;
+    }
+
+    private boolean isBooleanOrBM25() {
+        return isBoolean() || model instanceof RetrievalModelBM25;
+    }
+
+    /**
+     * Rewrite a node after its arguments, bottom up.
+     * */
+    private Qry rewriteNode(Qry q) throws IOException {
+        if (q instanceof QryIopTerm) {
+            return q;
+        }
+        for (int i = 0; i < q.args.size(); ++i) {
+            q.args.set(i, rewriteNode(q.args.get(i)));
+        }
+        // the arguments of weighted operators are paired with their weights
+        if (q instanceof QrySopWeight) {
+            return q;
+        }
+
+        boolean andOp = q instanceof QrySopAnd && isBooleanOrBM25();
+        boolean orOp = q instanceof QrySopOr && isBooleanOrBM25();
+        boolean sumOp = q instanceof QrySopSum && model instanceof RetrievalModelBM25;
+        boolean synOp = q instanceof QryIopSyn;
+
+        if (andOp || orOp || synOp) {
+            flatten(q);
+        }
+        if (andOp || orOp) {
+            mergeDuplicates(q);
+        }
+        if (orOp || sumOp || synOp) {
+            dropUnmatched(q);
+        }
+        if (andOp) {
+            orderByCost(q);
+        }
+
+        // as in optimizeQuery, an operator left with a single argument is
+        // replaced by it, except that BM25 scores #AND and #OR as 0
+        boolean collapsible = synOp || sumOp
+                || ((andOp || orOp) && isBoolean());
+        if (collapsible && q.args.size() == 1) {
+            return q.args.get(0);
+        }
+        return q;
+    }
+
+    /**
+     * Replace the arguments that have the type of q by their arguments.
+     * */
+    private void flatten(Qry q) {
+        List<Qry> flat = new ArrayList<Qry>(q.args.size());
+        boolean changed = false;
+        for (Qry arg : q.args) {
+            if (arg.getClass() == q.getClass()) {
+                // the argument was rewritten first, so it is already flat
+                flat.addAll(arg.args);
+                flattened++;
+                changed = true;
+            } else {
+                flat.add(arg);
+            }
+        }
+        if (changed) {
+            q.args.clear();
+            q.args.addAll(flat);
+        }
+    }
+
+    /**
+     * Remove the arguments that equal an earlier argument.
+     * */
+    private void mergeDuplicates(Qry q) {
+        Set<String> seen = new HashSet<String>();
+        for (int i = 0; i < q.args.size(); ) {
+            if (seen.add(format(q.args.get(i), false))) {
+                ++i;
+            } else {
+                q.removeArg(i);
+                merged++;
+            }
+        }
+    }
+
+    /**
+     * Remove the arguments that match no document, keeping at least one.
+     * */
+    private void dropUnmatched(Qry q) throws IOException {
+        for (int i = q.args.size() - 1; i >= 0 && q.args.size() > 1; --i) {
+            if (cost(q.args.get(i)) == 0) {
+                q.removeArg(i);
+                dropped++;
+            }
+        }
+    }
+
+    /**
+     * Order the arguments by ascending cost; equal costs keep their order.
+     * */
+    private void orderByCost(Qry q) throws IOException {
+        final long[] argCosts = new long[q.args.size()];
+        boolean sorted = true;
+        for (int i = 0; i < argCosts.length; ++i) {
+            argCosts[i] = cost(q.args.get(i));
+            sorted &= (i == 0 || argCosts[i - 1] <= argCosts[i]);
+        }
+        if (sorted) {
+            return;
+        }
+        Collections.sort(q.args, new Comparator<Qry>() {
+            @Override
+            public int compare(Qry a, Qry b) {
+                return Long.compare(costs.get(a), costs.get(b));
+            }
+        });
+        reordered++;
+    }
+
+    /**
+     * Estimate the number of documents a node matches: the df of a term,
+     * the smallest argument of a conjunction, the sum of the arguments of
+     * a disjunction. A node estimated at 0 matches no document.
+     * */
+    private long cost(Qry q) throws IOException {
+        Long cached = costs.get(q);
+        if (cached != null) {
+            return cached;
+        }
+        long cost;
+        if (q instanceof QryIopTerm) {
+            QryIopTerm term = (QryIopTerm) q;
+            // the dictionary's cached df is used if the term is in it, but a
+            // query term is not added, so misspellings do not grow it
+            TermDictionary dictionary = index.getTermDictionary(term.getField());
+            int id = dictionary.lookup(term.getTerm());
+            cost = (id >= 0) ? dictionary.df(id) : index.getDocFreq(term.getField(), term.getTerm());
+        } else if (q instanceof QrySopScore || q instanceof QryIopProximity || q instanceof QrySopAnd) {
+            cost = Long.MAX_VALUE;
+            for (Qry arg : q.args) {
+                cost = Math.min(cost, cost(arg));
+            }
+        } else {
+            cost = 0;
+            for (Qry arg : q.args) {
+                cost += cost(arg);
+            }
+        }
+        costs.put(q, cost);
+        return cost;
+    }
+
+    /**
+     * Format a node with its weights and, if asked, the estimated costs
+     * that are known, e.g., #AND( a.body[df=12] b.body[df=3] ).
+     * */
+    private String format(Qry q, boolean withCosts) {
+        StringBuilder out = new StringBuilder();
+        format(q, withCosts, out);
+        return out.toString();
+    }
+
+    private void format(Qry q, boolean withCosts, StringBuilder out) {
+        if (q instanceof QryIopTerm) {
+            out.append(q);
+        } else {
+            out.append(q.getDisplayName()).append("(");
+            for (int i = 0; i < q.args.size(); ++i) {
+                out.append(' ');
+                if (q instanceof QrySopWeight) {
+                    out.append(((QrySopWeight) q).getWeightAt(i)).append(' ');
+                }
+                format(q.args.get(i), withCosts, out);
+            }
+            out.append(" )");
+        }
+        Long cost = costs.get(q);
+        if (withCosts && cost != null) {
+            out.append("[df=").append(cost).append(']');
+        }
+    }
+}
@@ -40,6 +40,21 @@ public class QrySopAnd extends QrySop {
         }
     }
     
+    /**
+     * The cost of a conjunction, the smallest cost of its arguments. It
+     * is only asked for where AND is matched as a conjunction; the
+     * Indri AND is matched by docIteratorHasMatchMin.
+     * @return the estimated number of matching documents
+     * */
+    @Override
+    public long docIteratorCost() {
+        long cost = Long.MAX_VALUE;
+        for (Qry q : args) {
+            cost = Math.min(cost, q.docIteratorCost());
+        }
+        return args.isEmpty() ? 0 : cost;
+    }
+
     /**
      *  getScore for the UnrankedBoolean retrieval model.
      *  @param r The retrieval model that determines how scores are calculated.
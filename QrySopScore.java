@@ -83,7 +83,7 @@ public class QrySopScore extends QrySop {
    * @return the RSI weight score   
    * */
   private double calcDf(RetrievalModel r) throws IOException {
-      long N = Idx.getNumDocs();
+      long N = this.getIndex().getNumDocs();
       QryIop q = (QryIop)(this.getArg(0));
       int df = q.getDf();
       return Math.max(0.0, Math.log(((double)N - df + 0.5)/(df + 0.5)));  
@@ -100,8 +100,8 @@ public class QrySopScore extends QrySop {
       QryIop q = (QryIop)(this.getArg(0));
       String qfield = q.getField();
       int tf = q.docIteratorGetMatchPosting().tf;
-      int docLength = Idx.getFieldLength(qfield, q.docIteratorGetMatch());
-      double avgDocLength = Idx.getSumOfFieldLengths(qfield) / (double)Idx.getDocCount(qfield);
+      int docLength = this.getIndex().getFieldLength(qfield, q.docIteratorGetMatch());
+      double avgDocLength = this.getIndex().getSumOfFieldLengths(qfield) / (double)this.getIndex().getDocCount(qfield);
       return tf / (tf + k1 * ((1.0 - b) + b * (docLength / avgDocLength)));
   }
   
@@ -124,7 +124,7 @@ public class QrySopScore extends QrySop {
   private double getMLE() throws IOException {
       QryIop q = (QryIop)(this.getArg(0));
       double ctf = (double)q.invertedList.ctf;
-      double termC = (double)Idx.getSumOfFieldLengths(q.getField());
+      double termC = (double)this.getIndex().getSumOfFieldLengths(q.getField());
       return ctf / termC;
   }
   
@@ -142,7 +142,7 @@ public class QrySopScore extends QrySop {
           double lambda = ((RetrievalModelIndri)r).getLambda();
           QryIop q = (QryIop)(this.getArg(0));
           double tf = (double)q.docIteratorGetMatchPosting().tf;
-          double docLength = Idx.getFieldLength(q.getField(), q.docIteratorGetMatch());
+          double docLength = this.getIndex().getFieldLength(q.getField(), q.docIteratorGetMatch());
           double pMLE = getMLE();
           double leftSmooth = (1.0 - lambda) * (tf + mu * pMLE) / (mu + docLength);
           double rightSmooth = lambda * pMLE;
@@ -161,7 +161,7 @@ public class QrySopScore extends QrySop {
       double mu = (double)((RetrievalModelIndri)r).getMu();
       double lambda = ((RetrievalModelIndri)r).getLambda();
       QryIop q = (QryIop)(this.getArg(0));
-      double docLength = Idx.getFieldLength(q.getField(), (int)docid);
+      double docLength = this.getIndex().getFieldLength(q.getField(), (int)docid);
       double pMLE = getMLE();
       double leftSmooth = (1.0 - lambda) * (mu * pMLE) / (mu + docLength);
       double rightSmooth = lambda * pMLE;
@@ -175,12 +175,15 @@ public class QrySopScore extends QrySop {
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index that the query is evaluated against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize (RetrievalModel r) throws IOException {
+  public void initialize (RetrievalModel r, IndexHandle index)
+    throws IOException {
 
+    this.index = index;
     Qry q = this.args.get (0);
-    q.initialize (r);
+    q.initialize (r, index);
   }
 
 }
@@ -70,7 +70,7 @@ public class QrySopSum extends QrySop {
     private double getMLE() throws IOException {
         QryIop q = (QryIop)(this.getArg(0));
         double ctf = (double)q.invertedList.ctf;
-        double termC = (double)Idx.getSumOfFieldLengths(q.getField());
+        double termC = (double)this.getIndex().getSumOfFieldLengths(q.getField());
         return ctf / termC;
     }
     
@@ -84,7 +84,7 @@ public class QrySopSum extends QrySop {
         double mu = (double)((RetrievalModelIndri)r).getMu();
         double lambda = ((RetrievalModelIndri)r).getLambda();
         QryIop q = (QryIop)(this.getArg(0));
-        double docLength = Idx.getFieldLength(q.getField(), (int)docid);
+        double docLength = this.getIndex().getFieldLength(q.getField(), (int)docid);
         double pMLE = getMLE();
         double leftSmooth = (1.0 - lambda) * (mu * pMLE) / (mu + docLength);
         double rightSmooth = lambda * pMLE;
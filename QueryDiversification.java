@@ -1,7 +1,3 @@
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -220,103 +216,6 @@ public class QueryDiversification {
         return allRankings;
     }
     
-    /**
-     * Get all query intents from the input file.
-     * @param intentsFile_ the filepath for query intents
-     * @param currqid the current query id
-     * @param the query list
-     * */
-    public static List<String> processAllIntents(String intentsFile_, int currqid) throws Exception {
-        
-        List<String> allqIntents = new ArrayList<String>();
-        
-        FileInputStream rankFile = new FileInputStream(intentsFile_);
-        BufferedReader br = new BufferedReader(new InputStreamReader(rankFile));
-        
-        String line = null;
-        while ((line = br.readLine()) != null) {
-             String[] pair = line.split(":");
-             String query = pair[1];
-             String[] qidWIntent = pair[0].split("\\.");
-             // see if it is the query we are looking for
-             int qid = Integer.parseInt(qidWIntent[0]);
-             if (qid == currqid) {
-                 allqIntents.add(query);
-             }
-        }
-        
-        br.close();
-        return allqIntents;
-    }
-    
-    /**
-     * Process the ranking from file.
-     * @param initialRankingFile_ the file path
-     * @param currqid the current query id
-     * @return the document score
-     * */
-    public static List<Map<Integer, Double>> 
-        processInitialRankingFile(String initialRankingFile_, int currqid) throws Exception {
-        
-        List<Map<Integer, Double>> initialRankingFile = 
-                new ArrayList<Map<Integer, Double>>();
-        
-        FileInputStream rankFile = new FileInputStream(initialRankingFile_);
-        BufferedReader br = new BufferedReader(new InputStreamReader(rankFile));
-        // first store as score list
-        List<ScoreList> initialScoresFromFile = new ArrayList<>();
-        
-        String line = null;
-        while ((line = br.readLine()) != null) {
-             String[] pair = line.split(" ");
-             String query = pair[0];
-             String externalid = pair[2];
-             if (Idx.hasInternalDocid(externalid)) {
-                 int docid = Idx.getInternalDocid(externalid);
-                 double score = Double.parseDouble(pair[4]);
-                 int qid = 0;
-                 int intent = 0;
-                 if (query.contains(".")) {
-                     // different intents
-                     String[] parts = query.split("\\.");
-                     qid = Integer.parseInt(parts[0]);
-                     intent = Integer.parseInt(parts[1]);
-                 } else {
-                     // original query
-                     qid = Integer.parseInt(query);
-                 }
-                 if (qid == currqid) {
-                     // this array contains all <docid, score> pairs for
-                     // a particular intent
-                     if (initialScoresFromFile.size() < (intent + 1)) {
-                         // not yet initialize
-                         ScoreList r = new ScoreList();
-                         r.add(docid, score);
-                         initialScoresFromFile.add(r);  
-                     } else {
-                         // already there, append more <docid, score> pair
-                         ScoreList r = initialScoresFromFile.get(intent);
-                         r.add(docid, score);
-                     }
-                 }
-             }
-        }
-        
-        // then we change the score list into the document score map
-        int size = Math.min(initialScoresFromFile.get(0).size(), maxInputRankingsLength);
-        for (int i = 0; i < initialScoresFromFile.size(); ++i) {
-            Map<Integer, Double> currMap = new HashMap<>(size);
-            ScoreList r = initialScoresFromFile.get(i);
-            for (int j = 0; j < size; ++j) {
-                currMap.put(r.getDocid(j), r.getDocidScore(j));
-            }
-            initialRankingFile.add(currMap);
-        }
-        
-        br.close();
-        return initialRankingFile;
-    }
-    
     /**
      * Find the next document in xQuad algorithm.
      * @param diversifySofar the diversify documents so far
@@ -0,0 +1,297 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A three stage pipeline over a query file. A reader thread reads the
+ * query lines and parses them, the calling thread evaluates them, and a
+ * writer thread resolves the external docids of the results and writes
+ * them. The stages are connected by bounded queues, so reading, parsing
+ * and output overlap with evaluation while queries are still evaluated,
+ * and results written, in query file order.
+ * */
+public class QueryPipeline {
+
+    /**
+     * The number of queries each queue holds.
+     * */
+    private static final int QUEUE_SIZE = 16;
+
+    /**
+     * A query read from the query file.
+     * */
+    public static class ParsedQuery {
+        /**
+         * The query line, its qid and its query text.
+         * */
+        private String line;
+        private String qid;
+        private String query;
+        /**
+         * The query wrapped in the model's default operator, parsed and
+         * rewritten, or null if the pipeline does not parse.
+         * */
+        private Qry qry;
+        /**
+         * The explanation of the query rewriting, or null.
+         * */
+        private String explanation;
+
+        public String getLine() {
+            return line;
+        }
+
+        public String getQid() {
+            return qid;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public Qry getQry() {
+            return qry;
+        }
+
+        public String getExplanation() {
+            return explanation;
+        }
+    }
+
+    /**
+     * The evaluation stage.
+     * */
+    public interface Evaluator {
+        /**
+         * Evaluate a query.
+         * @param q the query
+         * @return the results, sorted, or null to write nothing
+         * @throws Exception Error evaluating the query.
+         * */
+        ScoreList evaluate(ParsedQuery q) throws Exception;
+    }
+
+    /**
+     * The output stage.
+     * */
+    public interface Output {
+        /**
+         * Write the results of a query.
+         * @param qid the query id
+         * @param r the results, sorted
+         * @throws IOException Error accessing the index or writing the output.
+         * */
+        void write(String qid, ScoreList r) throws IOException;
+    }
+
+    /**
+     * The evaluated results of a query, on their way to the writer.
+     * */
+    private static class Result {
+        private String qid;
+        private ScoreList r;
+
+        private Result(String qid_, ScoreList r_) {
+            qid = qid_;
+            r = r_;
+        }
+    }
+
+    /**
+     * The end of the stream in a queue.
+     * */
+    private static final ParsedQuery END_OF_QUERIES = new ParsedQuery();
+    private static final Result END_OF_RESULTS = new Result(null, null);
+
+    private String queryFilePath;
+    private RetrievalModel model;
+    private boolean parse;
+    /**
+     * The index whose statistics the reader rewrites queries with.
+     * */
+    private IndexHandle index;
+    /**
+     * The first error of the reader and writer threads.
+     * */
+    private volatile Throwable readerError = null;
+    private volatile Throwable writerError = null;
+    /**
+     * Set when the evaluation stops early, so the reader stops reading.
+     * */
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructor.
+     * @param queryFilePath_ the query file, "qid:query" per line
+     * @param model_ the retrieval model, whose default operator wraps parsed queries
+     * @param parse_ true to parse the queries in the reader thread
+     * */
+    public QueryPipeline(String queryFilePath_, RetrievalModel model_, boolean parse_) {
+        queryFilePath = queryFilePath_;
+        model = model_;
+        parse = parse_;
+        // taken here, so the reader thread does not follow the current index
+        index = parse_ ? Idx.getCurrentIndex() : null;
+    }
+
+    /**
+     * Run the pipeline over the whole query file.
+     * @param evaluator the evaluation stage, run in the calling thread
+     * @param output the output stage, run in the writer thread
+     * @throws Exception the first error of any stage
+     * */
+    public void run(Evaluator evaluator, final Output output) throws Exception {
+        final BlockingQueue<ParsedQuery> queries = new ArrayBlockingQueue<ParsedQuery>(QUEUE_SIZE);
+        final BlockingQueue<Result> results = new ArrayBlockingQueue<Result>(QUEUE_SIZE);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(queries);
+                } catch (Throwable t) {
+                    // an interrupt after a stop is how the reader is told to end
+                    if (!stopped) {
+                        readerError = t;
+                    }
+                } finally {
+                    putUninterruptibly(queries, END_OF_QUERIES);
+                }
+            }
+        }, "query-reader");
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Result result;
+                    while ((result = results.take()) != END_OF_RESULTS) {
+                        // after an error, drain the queue so the evaluator never blocks
+                        if (writerError == null) {
+                            output.write(result.qid, result.r);
+                        }
+                    }
+                } catch (Throwable t) {
+                    writerError = t;
+                    // keep draining until the end marker
+                    try {
+                        while (results.take() != END_OF_RESULTS) {
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "result-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+
+        boolean readerDone = false;
+        try {
+            ParsedQuery q;
+            while ((q = queries.take()) != END_OF_QUERIES) {
+                if (writerError != null) {
+                    break;
+                }
+                ScoreList r = evaluator.evaluate(q);
+                if (r != null) {
+                    results.put(new Result(q.qid, r));
+                }
+            }
+            readerDone = (q == END_OF_QUERIES);
+        } finally {
+            if (!readerDone) {
+                // stop the reader, and drain the queries so that it is not
+                // left blocked on a full queue with the query file open
+                stopped = true;
+                reader.interrupt();
+                takeUninterruptibly(queries, END_OF_QUERIES);
+            }
+            putUninterruptibly(results, END_OF_RESULTS);
+            writer.join();
+        }
+        rethrow(readerError);
+        rethrow(writerError);
+    }
+
+    /**
+     * The reader stage: read and parse every query line.
+     * */
+    private void read(BlockingQueue<ParsedQuery> queries) throws Exception {
+        BufferedReader input = new BufferedReader(new FileReader(queryFilePath));
+        try {
+            String qLine;
+            while (!stopped && (qLine = input.readLine()) != null) {
+                int d = qLine.indexOf(':');
+
+                if (d < 0) {
+                    throw new IllegalArgumentException
+                    ("Syntax error:  Missing ':' in query line.");
+                }
+
+                ParsedQuery q = new ParsedQuery();
+                q.line = qLine;
+                q.qid = qLine.substring(0, d);
+                q.query = qLine.substring(d + 1);
+                if (parse) {
+                    q.qry = QryParser.getQuery(model.defaultQrySopName() + "(" + q.query + ")");
+                    StringBuilder explanation = QryRewriter.isExplained() ? new StringBuilder() : null;
+                    q.qry = QryRewriter.rewrite(q.qry, model, index, explanation);
+                    if (explanation != null) {
+                        q.explanation = explanation.toString();
+                    }
+                }
+                queries.put(q);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Take items from a queue until the end marker.
+     * */
+    private static <T> void takeUninterruptibly(BlockingQueue<T> queue, T end) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (queue.take() == end) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void rethrow(Throwable t) throws Exception {
+        if (t == null) {
+            return;
+        }
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        }
+        throw (Error) t;
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A pairwise linear RankSVM trainer. It solves the same problem as
+ * svm_rank_learn for a linear kernel:
+ * <pre>
+ *   min 1/2 |w|^2 + C/n * sum over pairs max(0, 1 - w.(x_i - x_j))
+ * </pre>
+ * where n is the number of queries, and (i, j) ranges over the document
+ * pairs of a query in which i is more relevant than j. The objective is
+ * minimized with full-batch projected subgradient descent (Pegasos step
+ * sizes, averaged iterates). The subgradient of a query is computed from
+ * its documents sorted by score, without enumerating the pairs, and the
+ * queries are spread over a fork/join pool. The partial gradients are
+ * combined in a fixed order, so training is deterministic.
+ * */
+public class RankSVMTrainer {
+
+    /**
+     * The trade-off between training error and margin, as in svm_rank_learn -c.
+     * */
+    private double C;
+    /**
+     * The number of passes over the training data.
+     * */
+    private int iterations;
+    /**
+     * The pool that computes the gradients.
+     * */
+    private ForkJoinPool pool;
+
+    /**
+     * Constructor.
+     * @param C_ the trade-off between training error and margin
+     * @param iterations_ the number of passes over the training data
+     * @param pool_ the pool that computes the gradients
+     * */
+    public RankSVMTrainer(double C_, int iterations_, ForkJoinPool pool_) {
+        C = C_;
+        iterations = iterations_;
+        pool = pool_;
+    }
+
+    /**
+     * Train a linear ranking model.
+     * @param features the normalized feature vectors of each query's documents
+     * @param labels the relevance of each query's documents
+     * @param numFeatures the number of features
+     * @return the model
+     * */
+    public SVMRankModel train(List<FeatureMatrix> features, List<int[]> labels, int numFeatures) {
+        FeatureMatrix[] queryFeatures = features.toArray(new FeatureMatrix[features.size()]);
+        int[][] queryLabels = labels.toArray(new int[labels.size()][]);
+
+        // count the preference pairs
+        long numPairs = 0;
+        for (int[] y : queryLabels) {
+            numPairs += countPairs(y);
+        }
+        double[] w = new double[numFeatures];
+        if (numPairs == 0) {
+            return new SVMRankModel(w, 0.0);
+        }
+        // the same objective scaled to the pegasos form lambda/2 |w|^2 + mean pair loss
+        double lambda = queryFeatures.length / (C * numPairs);
+        double radius = 1.0 / Math.sqrt(lambda);
+        double[] average = new double[numFeatures];
+        int averaged = 0;
+
+        for (int t = 1; t <= iterations; ++t) {
+            double[] gradient = pool.invoke(
+                    new GradientTask(queryFeatures, queryLabels, w, 0, queryFeatures.length));
+            // w = (1 - eta * lambda) * w - eta * gradient / numPairs
+            double eta = 1.0 / (lambda * t);
+            double norm = 0.0;
+            for (int i = 0; i < numFeatures; ++i) {
+                w[i] = (1.0 - eta * lambda) * w[i] - eta * gradient[i] / numPairs;
+                norm += w[i] * w[i];
+            }
+            // project onto the ball that contains the optimum
+            norm = Math.sqrt(norm);
+            if (norm > radius) {
+                for (int i = 0; i < numFeatures; ++i) {
+                    w[i] *= radius / norm;
+                }
+            }
+            // average the second half of the iterates
+            if (2 * t > iterations) {
+                averaged++;
+                for (int i = 0; i < numFeatures; ++i) {
+                    average[i] += (w[i] - average[i]) / averaged;
+                }
+            }
+        }
+        return new SVMRankModel(average, 0.0);
+    }
+
+    /**
+     * Count the preference pairs of a query.
+     * @param y the relevance of the documents
+     * @return the number of pairs with different relevance
+     * */
+    private static long countPairs(int[] y) {
+        int[] sorted = y.clone();
+        Arrays.sort(sorted);
+        long pairs = 0;
+        int lower = 0;
+        for (int i = 0; i < sorted.length; ) {
+            int j = i;
+            while (j < sorted.length && sorted[j] == sorted[i]) { j++; }
+            pairs += (long)(j - i) * lower;
+            lower += j - i;
+            i = j;
+        }
+        return pairs;
+    }
+
+    /**
+     * The task that sums the pair loss subgradients of a range of queries.
+     * */
+    private static class GradientTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+        private FeatureMatrix[] features;
+        private int[][] labels;
+        private double[] w;
+        private int begin;
+        private int end;
+
+        private GradientTask(FeatureMatrix[] features_, int[][] labels_, double[] w_,
+                int begin_, int end_) {
+            features = features_;
+            labels = labels_;
+            w = w_;
+            begin = begin_;
+            end = end_;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (end - begin > 1) {
+                int mid = (begin + end) >>> 1;
+                GradientTask left = new GradientTask(features, labels, w, begin, mid);
+                GradientTask right = new GradientTask(features, labels, w, mid, end);
+                left.fork();
+                double[] gradient = right.compute();
+                double[] leftGradient = left.join();
+                for (int i = 0; i < gradient.length; ++i) {
+                    gradient[i] += leftGradient[i];
+                }
+                return gradient;
+            }
+            double[] gradient = new double[w.length];
+            if (begin < end) {
+                addQueryGradient(features[begin], labels[begin], w, gradient);
+            }
+            return gradient;
+        }
+    }
+
+    /**
+     * Add the pair loss subgradient of one query. A pair (i, j) with
+     * y_i > y_j violates the margin if s_i - s_j < 1, and adds x_j - x_i.
+     * Each document's coefficient is counted with binary searches over the
+     * sorted scores of each relevance level.
+     * @param features the feature vectors of the documents
+     * @param y the relevance of the documents
+     * @param w the current weights
+     * @param gradient the gradient to add to
+     * */
+    private static void addQueryGradient(FeatureMatrix features, int[] y, double[] w,
+            double[] gradient) {
+        int n = features.getNumDocs();
+        int numFeatures = features.getNumFeatures();
+        double[] x = features.getValues();
+        double[] s = new double[n];
+        for (int d = 0; d < n; ++d) {
+            s[d] = dot(w, x, d * numFeatures);
+        }
+        // the relevance levels and the sorted scores of each level
+        int[] levels = y.clone();
+        Arrays.sort(levels);
+        int numLevels = 0;
+        for (int i = 0; i < n; ++i) {
+            if (i == 0 || levels[i] != levels[i - 1]) { levels[numLevels++] = levels[i]; }
+        }
+        double[][] levelScores = new double[numLevels][];
+        int[] levelSize = new int[numLevels];
+        for (int d = 0; d < n; ++d) {
+            levelSize[Arrays.binarySearch(levels, 0, numLevels, y[d])]++;
+        }
+        for (int l = 0; l < numLevels; ++l) {
+            levelScores[l] = new double[levelSize[l]];
+            levelSize[l] = 0;
+        }
+        for (int d = 0; d < n; ++d) {
+            int l = Arrays.binarySearch(levels, 0, numLevels, y[d]);
+            levelScores[l][levelSize[l]++] = s[d];
+        }
+        for (int l = 0; l < numLevels; ++l) {
+            Arrays.sort(levelScores[l]);
+        }
+
+        for (int d = 0; d < n; ++d) {
+            int level = Arrays.binarySearch(levels, 0, numLevels, y[d]);
+            long coefficient = 0;
+            // d is the more relevant document: less relevant ones scored above s_d - 1
+            for (int l = 0; l < level; ++l) {
+                coefficient -= countGreater(levelScores[l], s[d] - 1.0);
+            }
+            // d is the less relevant document: more relevant ones scored below s_d + 1
+            for (int l = level + 1; l < numLevels; ++l) {
+                coefficient += countLess(levelScores[l], s[d] + 1.0);
+            }
+            if (coefficient != 0) {
+                int base = d * numFeatures;
+                for (int i = 0; i < gradient.length; ++i) {
+                    gradient[i] += coefficient * x[base + i];
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of values strictly greater than v in a sorted array.
+     * */
+    private static int countGreater(double[] sorted, double v) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= v) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+        return sorted.length - lo;
+    }
+
+    /**
+     * The number of values strictly less than v in a sorted array.
+     * */
+    private static int countLess(double[] sorted, double v) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < v) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+        return lo;
+    }
+
+    /**
+     * The dot product of the weights and a row of feature values.
+     * */
+    private static double dot(double[] w, double[] x, int base) {
+        double score = 0.0;
+        for (int i = 0; i < w.length; ++i) {
+            score += w[i] * x[base + i];
+        }
+        return score;
+    }
+}
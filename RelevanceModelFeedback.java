@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Relevance model (RM1 / RM3) query expansion. The expansion terms are
+ * weighted by p(t|R), the sum over the feedback documents d of
+ * p(t|d) * s(d), where p(t|d) is the Dirichlet smoothed estimate
+ * (tf + mu * ctf / |C|) / (mu + |d|) and s(d) is the original score,
+ * and the fbTerms heaviest terms are normalized to sum to 1. RM3
+ * interpolates the expansion with the original query by fbOrigWeight;
+ * RM1 uses the expansion alone.
+ * <p>
+ * The documents are read from the blocks of a ForwardIndex instead of
+ * term vectors, and the smoothing of the documents without a term is
+ * added in closed form, as in the Indri expansion.
+ * </p>
+ * */
+public class RelevanceModelFeedback extends PseudoRelevanceFeedback {
+
+    /**
+     * The forward index of the body field.
+     * */
+    private ForwardIndex forwardIndex;
+    /**
+     * True for RM3, false for RM1.
+     * */
+    private boolean interpolate;
+
+    /**
+     * Constructor for relevance model feedback.
+     * @param fbDocs_ the provided fbDocs
+     * @param fbTerms_ the provided fbTerms
+     * @param fbMu_ the provided fbMu
+     * @param fbOrigWeight_ the provided fbOrigWeight, the weight of the original query in RM3
+     * @param forwardIndex_ the forward index of the body field
+     * @param interpolate_ true for RM3, false for RM1
+     * */
+    public RelevanceModelFeedback(int fbDocs_, int fbTerms_, double fbMu_,
+            double fbOrigWeight_, ForwardIndex forwardIndex_, boolean interpolate_) {
+        super(fbDocs_, fbTerms_, fbMu_, fbOrigWeight_);
+        forwardIndex = forwardIndex_;
+        interpolate = interpolate_;
+    }
+
+    /**
+     * Produce the fbTerms terms of the relevance model.
+     * @param r the original score list
+     * @return the terms, weighted by p(t|R), highest first
+     * @throws IOException Error accessing the forward index
+     * */
+    @Override
+    public List<LearnedTerm> produceExpandTerms(ScoreList r) throws IOException {
+        int fbTerms = getfbTerms();
+        double fbMu = getfbMu();
+        int documentToInspect = Math.min(r.size(), getfbDocs());
+
+        // one pass over the block of each document: sum of tf * s(d) / (mu + |d|)
+        IntDoubleMap accumulated = new IntDoubleMap(1024);
+        double smoothingMass = 0.0;
+        int[] termIds = new int[256];
+        int[] tfs = new int[256];
+        for (int i = 0; i < documentToInspect; ++i) {
+            int docid = r.getDocid(i);
+            double docWeight = r.getDocidScore(i) / (fbMu + getIndex().getFieldLength(forwardIndex.getField(), docid));
+            smoothingMass += docWeight;
+            int size = forwardIndex.getBlockSize(docid);
+            if (size > termIds.length) {
+                termIds = new int[size];
+                tfs = new int[size];
+            }
+            forwardIndex.readBlock(docid, termIds, tfs);
+            for (int j = 0; j < size; ++j) {
+                accumulated.add(termIds[j], tfs[j] * docWeight);
+            }
+        }
+
+        // the heaviest valid terms, equal weights to the smaller term id (the
+        // alphabetically first term); a term is decoded only if it would be selected
+        double termC = getIndex().getSumOfFieldLengths(forwardIndex.getField());
+        TopKSelector selector = new TopKSelector(fbTerms);
+        for (int termId : accumulated.keys()) {
+            double smoothing = (fbMu == 0.0) ? 0.0 :
+                    fbMu * (forwardIndex.getCtf(termId) / termC) * smoothingMass;
+            double score = accumulated.get(termId, 0.0) + smoothing;
+            if (selector.wouldAccept(termId, score) && isValidTerm(forwardIndex.getTerm(termId))) {
+                selector.offer(termId, score);
+            }
+        }
+        selector.sort();
+
+        // normalize the selected weights into p(t|R)
+        double sum = 0.0;
+        for (int i = 0; i < selector.size(); ++i) {
+            sum += selector.getScore(i);
+        }
+        List<LearnedTerm> expandTerms = new ArrayList<LearnedTerm>(selector.size());
+        for (int i = 0; i < selector.size(); ++i) {
+            double score = selector.getScore(i);
+            expandTerms.add(new LearnedTerm(forwardIndex.getTerm(selector.getKey(i)),
+                    (sum > 0.0) ? score / sum : score));
+        }
+        return expandTerms;
+    }
+
+    /**
+     * Combine the original query and the expanded query. RM1 uses the
+     * expanded query alone, unless it is empty.
+     * @param originalQry the original query
+     * @param expandQry the expanded query
+     * @return the combined query
+     * */
+    @Override
+    public Qry produceCombinedQry(Qry originalQry, QrySopWAnd expandQry) {
+        if (interpolate || expandQry.args.size() == 0) {
+            return super.produceCombinedQry(originalQry, expandQry);
+        }
+        return expandQry;
+    }
+
+    /**
+     * Combine the original query and the expanded query strings. RM1
+     * uses the expanded query alone.
+     * @param originalQuery the original query
+     * @param expandQuery the expanded query
+     * @return the combined query
+     * */
+    @Override
+    public String produceCombinedQuery(String originalQuery, String expandQuery) {
+        return interpolate ? super.produceCombinedQuery(originalQuery, expandQuery) : expandQuery;
+    }
+}
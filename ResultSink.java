@@ -0,0 +1,309 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The output of query results for a run. One file channel stays open for
+ * the whole run, and rows are formatted into a large buffer that is only
+ * written out when it fills, so writing results costs no per-query file
+ * opens and no String.format calls.
+ * <p>
+ * Two formats are supported: the trec_eval text format
+ * "qid Q0 externalId rank score runId", with the score printed as
+ * %.18f would print it, and a compact binary format (a header, then per
+ * query the qid, the number of rows, and each row's external id and
+ * score). Run the class on its own to convert a binary run to text:
+ * java ResultSink binaryRunFile textRunFile
+ * </p>
+ * */
+public class ResultSink {
+
+    /**
+     * The supported formats.
+     * */
+    public static final String FORMAT_TREC = "trec";
+    public static final String FORMAT_BINARY = "binary";
+    /**
+     * The magic number and version of the binary format.
+     * */
+    private static final int MAGIC = 0x52554e42;
+    private static final int VERSION = 1;
+    /**
+     * The run id, the number of rows written per query, and the row
+     * written for a query without results.
+     * */
+    public static final String RUN_ID = "HW4";
+    public static final int MAX_ROWS = 100;
+    private static final String DUMMY_RESULT = "10 Q0 dummy 1 0 " + RUN_ID + "\n";
+    /**
+     * The digits after the decimal point of a score.
+     * */
+    private static final int SCORE_DECIMALS = 18;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private boolean binary;
+    /**
+     * The reused line buffer of the text format.
+     * */
+    private StringBuilder line = new StringBuilder(128);
+
+    /**
+     * Open a sink that appends to a file.
+     * @param path the output file
+     * @param format FORMAT_TREC or FORMAT_BINARY
+     * @throws IOException Error opening the file.
+     * */
+    public ResultSink(String path, String format) throws IOException {
+        if (!FORMAT_TREC.equals(format) && !FORMAT_BINARY.equals(format)) {
+            throw new IllegalArgumentException("Unknown result format " + format);
+        }
+        binary = FORMAT_BINARY.equals(format);
+        channel = new FileOutputStream(new File(path), true).getChannel();
+        if (binary && channel.size() == 0) {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+        }
+    }
+
+    /**
+     * Write the top rows of a query's results.
+     * @param qid the query id
+     * @param result the results, sorted
+     * @throws IOException Error accessing the index or writing the file.
+     * */
+    public synchronized void write(int qid, ScoreList result) throws IOException {
+        int rows = Math.min(result.size(), MAX_ROWS);
+        if (binary) {
+            reserve(8);
+            buffer.putInt(qid);
+            buffer.putInt(rows);
+            for (int i = 0; i < rows; i++) {
+                byte[] externalId = result.getExternalDocid(i).getBytes(UTF8);
+                reserve(2 + externalId.length + 8);
+                buffer.putShort((short) externalId.length);
+                buffer.put(externalId);
+                buffer.putDouble(result.getDocidScore(i));
+            }
+            return;
+        }
+        if (rows == 0) {
+            putLine(DUMMY_RESULT);
+            return;
+        }
+        for (int i = 0; i < rows; i++) {
+            line.setLength(0);
+            appendRow(line, qid, result.getExternalDocid(i), i + 1, result.getDocidScore(i));
+            putLine(line);
+        }
+    }
+
+    /**
+     * Format a trec_eval row.
+     * */
+    private static void appendRow(StringBuilder line, int qid, String externalId, int rank, double score) {
+        line.append(qid).append(" Q0 ").append(externalId).append(' ').append(rank).append(' ');
+        appendFixed(line, score, SCORE_DECIMALS);
+        line.append(' ').append(RUN_ID).append('\n');
+    }
+
+    /**
+     * Append a line of text to the buffer.
+     * */
+    private void putLine(CharSequence text) throws IOException {
+        int n = text.length();
+        reserve(4 * n);
+        for (int i = 0; i < n; ++i) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                buffer.put(text.toString().substring(i).getBytes(UTF8));
+                return;
+            }
+            buffer.put((byte) c);
+        }
+    }
+
+    /**
+     * Make room for n bytes, writing the buffer out if needed.
+     * */
+    private void reserve(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush();
+            if (buffer.capacity() < n) {
+                buffer = ByteBuffer.allocateDirect(n);
+            }
+        }
+    }
+
+    /**
+     * Write the buffered rows to the file.
+     * @throws IOException Error writing the file.
+     * */
+    public synchronized void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write the buffered rows and close the file.
+     * @throws IOException Error writing the file.
+     * */
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Append a double with a fixed number of decimals, exactly as
+     * String.format("%." + decimals + "f", x) does: the shortest decimal
+     * representation of x (Double.toString) rounded half up, or padded
+     * with zeros, to the given number of decimals.
+     * @param out the output
+     * @param x the value
+     * @param decimals the number of digits after the decimal point
+     * */
+    public static void appendFixed(StringBuilder out, double x, int decimals) {
+        if (Double.isNaN(x)) {
+            out.append("NaN");
+            return;
+        }
+        if (Double.isInfinite(x)) {
+            out.append(x > 0 ? "Infinity" : "-Infinity");
+            return;
+        }
+        String s = Double.toString(x);
+        int i = 0;
+        if (s.charAt(0) == '-') {
+            out.append('-');
+            i = 1;
+        }
+        // the significant digits, and the position of the decimal point in them
+        char[] digits = new char[s.length() + 1];
+        int numDigits = 0;
+        int pointPos = -1;
+        int exponent = 0;
+        for (; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                pointPos = numDigits;
+            } else if (c == 'E') {
+                exponent = Integer.parseInt(s.substring(i + 1));
+                break;
+            } else {
+                digits[numDigits++] = c;
+            }
+        }
+        if (pointPos < 0) {
+            pointPos = numDigits;
+        }
+        pointPos += exponent;
+
+        // keep the digits up to the last decimal, rounding half up
+        int keep = pointPos + decimals;
+        if (keep < 0) {
+            keep = 0;
+            numDigits = 0;
+        } else if (keep < numDigits) {
+            boolean roundUp = digits[keep] >= '5';
+            numDigits = keep;
+            if (roundUp) {
+                int j = keep - 1;
+                while (j >= 0 && digits[j] == '9') {
+                    digits[j--] = '0';
+                }
+                if (j >= 0) {
+                    digits[j]++;
+                } else {
+                    // a carry out of the first digit adds a leading 1
+                    System.arraycopy(digits, 0, digits, 1, numDigits);
+                    digits[0] = '1';
+                    numDigits++;
+                    pointPos++;
+                }
+            }
+        }
+
+        // the integer part, then the decimals
+        if (pointPos <= 0) {
+            out.append('0');
+        } else {
+            for (int d = 0; d < pointPos; ++d) {
+                out.append(d < numDigits ? digits[d] : '0');
+            }
+        }
+        if (decimals > 0) {
+            out.append('.');
+            for (int d = pointPos; d < pointPos + decimals; ++d) {
+                out.append(d >= 0 && d < numDigits ? digits[d] : '0');
+            }
+        }
+    }
+
+    /**
+     * Convert a binary run file to the trec_eval text format.
+     * @param binaryPath the binary run file
+     * @param textPath the text run file, which is overwritten
+     * @throws IOException Error reading or writing the files.
+     * */
+    public static void convertToText(String binaryPath, String textPath) throws IOException {
+        File textFile = new File(textPath);
+        if (textFile.exists() && !textFile.delete()) {
+            throw new IOException("Cannot replace " + textPath);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryPath), 1 << 16));
+        ResultSink text = new ResultSink(textPath, FORMAT_TREC);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(binaryPath + " is not a binary run file");
+            }
+            while (true) {
+                int qid;
+                try {
+                    qid = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int rows = in.readInt();
+                if (rows == 0) {
+                    text.putLine(DUMMY_RESULT);
+                }
+                for (int i = 0; i < rows; ++i) {
+                    byte[] externalId = new byte[in.readUnsignedShort()];
+                    in.readFully(externalId);
+                    double score = in.readDouble();
+                    text.line.setLength(0);
+                    appendRow(text.line, qid, new String(externalId, UTF8), i + 1, score);
+                    text.putLine(text.line);
+                }
+            }
+        } finally {
+            in.close();
+            text.close();
+        }
+    }
+
+    /**
+     * Convert a binary run file to the trec_eval text format.
+     * @param args the binary run file and the text run file
+     * @throws Exception Error reading or writing the files.
+     * */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage:  java ResultSink binaryRunFile textRunFile");
+            System.exit(1);
+        }
+        convertToText(args[0], args[1]);
+    }
+}
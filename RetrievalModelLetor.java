@@ -1,21 +1,22 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This is the Learning to Rank retrieval model.
@@ -26,7 +27,7 @@ public class RetrievalModelLetor extends RetrievalModel {
     /**
      * The number of features in this learning to rank model.
      * */
-    static private final int featureNum = 18;
+    static private final int featureNum = LetorFeatureExtractor.FEATURE_NUM;
     /**
      * A file of training queries.
      * */
@@ -46,6 +47,18 @@ public class RetrievalModelLetor extends RetrievalModel {
      * Filepath to PageRank scores.
      * */
     private String pageRankFile;
+    /**
+     * The PageRank scores, loaded once per run.
+     * */
+    private PageRankStore pageRankStore;
+    /**
+     * The feature extractor, created once per run.
+     * */
+    private LetorFeatureExtractor extractor;
+    /**
+     * The query-independent features, precomputed once per index.
+     * */
+    private StaticFeatureStore staticFeatureStore;
     /**
      * A comma-separated list of features to disable for this assignment.
      * For example, "letor:featureDisable=6, 9, 12, 15" disables all Indri features.
@@ -77,10 +90,6 @@ public class RetrievalModelLetor extends RetrievalModel {
      * The file of document scores that svm_rank_classify will write for the testing feature vectors.
      * */
     private String testingDocumentScores;
-    /**
-     * BM25 doc length.
-     * */
-    private double N;
     /**
      * The BM25 model to use for initial retrieval.
      * */
@@ -144,42 +153,250 @@ public class RetrievalModelLetor extends RetrievalModel {
         
         indriModel = new RetrievalModelIndri(Integer.parseInt(parameters.get("Indri:mu")),
                                     Double.parseDouble(parameters.get("Indri:lambda")));
-        
-        N = Idx.getNumDocs();
     }
     
     /**
-     * Helper function to get BM25 term score.
-     * @param df the document frequency
-     * @param tf the term frequency
-     * @param doclen the document length
-     * @param avgDocLength the average document length
-     * @return the term score of BM25 model
+     * The feature vectors of one query, in the order they are written.
+     * */
+    private static class QueryFeatures {
+        /**
+         * The query id and the stemmed query terms.
+         * */
+        private int qid;
+        private String[] queryTokens;
+        /**
+         * The relevance judgments, null for test queries.
+         * */
+        private Map<String, Integer> relDocs;
+        /**
+         * The documents, sorted by external id, and their relevance (0 for test queries).
+         * */
+        private String[] externalIds;
+        private int[] docids;
+        private int[] labels;
+        /**
+         * The feature values of each document, released once written.
+         * */
+        private FeatureMatrix features;
+        /**
+         * The model score of each document, if scored in memory.
+         * */
+        private double[] scores;
+        /**
+         * True for the documents whose features came from the feature cache.
+         * */
+        private boolean[] cached;
+
+        /**
+         * Constructor.
+         * @param qid_ the query id
+         * @param queryTokens_ the stemmed query terms
+         * @param relDocs_ the relevance judgments, null for test queries
+         * @param docs the documents, external id to internal docid
+         * */
+        private QueryFeatures(int qid_, String[] queryTokens_,
+                Map<String, Integer> relDocs_, TreeMap<String, Integer> docs) {
+            qid = qid_;
+            queryTokens = queryTokens_;
+            relDocs = relDocs_;
+            externalIds = new String[docs.size()];
+            docids = new int[docs.size()];
+            labels = new int[docs.size()];
+            int cnt = 0;
+            for (Map.Entry<String, Integer> entry : docs.entrySet()) {
+                externalIds[cnt] = entry.getKey();
+                docids[cnt] = entry.getValue();
+                labels[cnt] = (relDocs == null) ? 0 : relDocs.get(entry.getKey());
+                cnt++;
+            }
+        }
+    }
+
+    /**
+     * The task that generates the normalized feature vectors of a query.
      * */
-    private double getBM25TermScore(double df, double tf, int doclen,
-            double avgDocLength) {
-        
-        double k1 = BM25Model.getK1();
-        double b = BM25Model.getB();
-        
-        double first = Math.max(0.0, Math.log((N - df + 0.5) / (df + 0.5)));
-        double second = tf / (tf + k1 * ((1-b) + b * doclen / avgDocLength));
-        return first * second;
+    private class QueryFeatureTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private QueryFeatures queryFeatures;
+
+        private QueryFeatureTask(QueryFeatures queryFeatures_) {
+            queryFeatures = queryFeatures_;
+        }
+
+        @Override
+        protected void compute() {
+            LetorFeatureExtractor.PreparedQuery preparedQuery = null;
+            try {
+                // look up the query statistics once for all documents
+                preparedQuery = extractor.prepareQuery(queryFeatures.queryTokens);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            int numDocs = queryFeatures.docids.length;
+            queryFeatures.features = new FeatureMatrix(numDocs, featureNum);
+            queryFeatures.cached = new boolean[numDocs];
+            // reuse the raw features of earlier runs, and extract the rest
+            int numCached = (featureCache == null) ? 0 : 
+                featureCache.lookup(queryFeatures.qid, queryFeatures.queryTokens,
+                        queryFeatures.externalIds, queryFeatures.features, queryFeatures.cached);
+            if (numCached < numDocs) {
+                new DocumentFeatureTask(preparedQuery, queryFeatures, 0, numDocs).invoke();
+            }
+            if (featureCache != null) {
+                featureCache.add(queryFeatures.qid, queryFeatures.queryTokens,
+                        queryFeatures.externalIds, queryFeatures.features, queryFeatures.cached);
+                // the cache holds all features, mask the disabled ones
+                for (int i = 0; i < featureNum; ++i) {
+                    if (featureDisable[i]) { queryFeatures.features.setMissing(i); }
+                }
+            }
+            // normalize the feature values for query q
+            if (zScoreNormalization) {
+                queryFeatures.features.normalizeZScore();
+            } else {
+                queryFeatures.features.normalizeMinMax();
+            }
+            // score the documents while their features are in memory
+            if (rankModel != null) {
+                queryFeatures.scores = new double[numDocs];
+                for (int i = 0; i < numDocs; ++i) {
+                    queryFeatures.scores[i] = rankModel.score(queryFeatures.features, i);
+                }
+            }
+        }
     }
-    
+
+    /**
+     * The task that extracts the features of a range of documents of a query.
+     * Large ranges are split so the documents of one query are spread over the pool.
+     * */
+    private class DocumentFeatureTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private LetorFeatureExtractor.PreparedQuery preparedQuery;
+        private QueryFeatures queryFeatures;
+        private int begin;
+        private int end;
+
+        private DocumentFeatureTask(LetorFeatureExtractor.PreparedQuery preparedQuery_,
+                QueryFeatures queryFeatures_, int begin_, int end_) {
+            preparedQuery = preparedQuery_;
+            queryFeatures = queryFeatures_;
+            begin = begin_;
+            end = end_;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin > DOCUMENT_BATCH) {
+                int mid = (begin + end) >>> 1;
+                invokeAll(new DocumentFeatureTask(preparedQuery, queryFeatures, begin, mid),
+                        new DocumentFeatureTask(preparedQuery, queryFeatures, mid, end));
+                return;
+            }
+            double[] buffer = new double[featureNum];
+            try {
+                for (int i = begin; i < end; ++i) {
+                    if (queryFeatures.cached[i]) {
+                        continue;
+                    }
+                    extractor.extract(preparedQuery, queryFeatures.docids[i], buffer);
+                    queryFeatures.features.setRow(i, buffer);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * The number of documents a feature task handles without splitting.
+     * */
+    private static final int DOCUMENT_BATCH = 16;
+    /**
+     * The pool that generates the feature vectors.
+     * */
+    private ForkJoinPool featurePool;
+    /**
+     * The trained model, when test documents are scored in memory
+     * instead of by svm_rank_classify.
+     * */
+    private SVMRankModel rankModel;
+    /**
+     * The raw features of earlier runs, null if not cached.
+     * */
+    private LetorFeatureCache featureCache;
+    /**
+     * True to normalize features to zero mean and unit variance instead of [0..1].
+     * */
+    private boolean zScoreNormalization;
+    /**
+     * True to write the feature vector files in binary instead of the SVMrank text format.
+     * */
+    private boolean binaryFeatureVectors;
+
     /**
      * The main function to process the training process and rank test queries.
      * @param parameters the parameters provided
      * */
     public void trainThenProcessQuery(Map<String, String> parameters) throws Exception {
-        // generate training data
-        String qLine = null;
+        // parse the PageRank file once, or map its sidecar next to the index
+        pageRankStore = PageRankStore.open(pageRankFile, parameters.get("letor:pageRankCacheFile"));
+        // the query-independent features are computed once per index
+        staticFeatureStore = StaticFeatureStore.open(parameters.get("letor:staticFeatureCacheFile"));
+        // with a feature cache every feature is extracted once, and the
+        // disabled features are only masked out before normalization
+        String featureCacheFile = parameters.get("letor:featureCacheFile");
+        if (featureCacheFile != null) {
+            featureCache = new LetorFeatureCache(featureCacheFile, featureCacheSignature(), featureNum);
+            extractor = new LetorFeatureExtractor(BM25Model, indriModel,
+                    new boolean[featureNum], pageRankStore, staticFeatureStore);
+        } else {
+            extractor = new LetorFeatureExtractor(BM25Model, indriModel, featureDisable,
+                    pageRankStore, staticFeatureStore);
+        }
+        zScoreNormalization = "zscore".equals(parameters.get("letor:normalization"));
+        binaryFeatureVectors = "binary".equals(parameters.get("letor:featureVectorsFormat"));
+        if (binaryFeatureVectors && 
+                (!"internal".equals(parameters.get("letor:trainer")) ||
+                 "external".equals(parameters.get("letor:svmRankClassifyMode")))) {
+            throw new IllegalArgumentException
+            ("Binary feature vectors need the internal trainer and classifier.");
+        }
+        // features are generated in parallel across queries and documents
+        int threads = parameters.containsKey("letor:threads") ?
+                Integer.parseInt(parameters.get("letor:threads")) :
+                Runtime.getRuntime().availableProcessors();
+        featurePool = new ForkJoinPool(threads);
+        try {
+            trainModel(parameters);
+            rankTestQueries(parameters);
+        } finally {
+            featurePool.shutdown();
+        }
+    }
+
+    /**
+     * The configuration that raw features depend on. A feature cache
+     * written under another configuration is not reused.
+     * @return the signature
+     * */
+    private String featureCacheSignature() throws IOException {
+        return "index=" + new File(Idx.getIndexPath()).getCanonicalPath()
+                + " signature=" + Idx.getIndexSignature()
+                + " BM25=" + BM25Model.getK1() + "," + BM25Model.getB()
+                + " Indri=" + indriModel.getMu() + "," + indriModel.getLambda()
+                + " pageRank=" + DocColumnStore.fileSignature(new File(pageRankFile));
+    }
+
+    /**
+     * Generate the training data and train a model with svm_rank_learn or the internal trainer.
+     * @param parameters the parameters provided
+     * */
+    private void trainModel(Map<String, String> parameters) throws Exception {
         Map<Integer, TreeMap<String, Integer>> queryRelDocs = sortOutQrelsFile(trainingQrelsFile);
-        // get the query id and query itself
-        int qid = -1;
-        String query = null;
+        List<QueryFeatures> queries = new ArrayList<QueryFeatures>();
+        String qLine = null;
         BufferedReader input = new BufferedReader(new FileReader(trainingQueryFile));
-       
         while ((qLine = input.readLine()) != null) {
             // use QryEval.tokenizeQuery to stop & stem the query
             int d = qLine.indexOf(':');
@@ -187,90 +404,65 @@ public class RetrievalModelLetor extends RetrievalModel {
                 throw new IllegalArgumentException
                 ("Syntax error:  Missing ':' in query line.");
             }
-            qid = Integer.parseInt(qLine.substring(0, d));
-            query = qLine.substring(d + 1);
+            int qid = Integer.parseInt(qLine.substring(0, d));
+            String query = qLine.substring(d + 1);
             String[] queryTokens = QryParser.tokenizeString(query);
-            // for each document d in the relevance judgements for training query q {
-            // read the PageRank feature from a file
-            // fetch the term vector for d
-            // calculate other features for <q, d>
-            // }
-            Map<String, Integer> relDocs = queryRelDocs.get(qid);
-            Set<String> docs = relDocs.keySet();
-            Map<Integer, Double> pageRankMap = new HashMap<Integer, Double>(docs.size());
-            pageRankMap = processPageRankFile(docs, pageRankFile);
-            // set up the maximum or minimum features statistics
-            Double[] maxFeatures = new Double[featureNum];
-            for (int i = 0; i < featureNum; ++i) { maxFeatures[i] = -Double.MAX_VALUE; }
-            Double[] minFeatures = new Double[featureNum];
-            for (int i = 0; i < featureNum; ++i) { minFeatures[i] = Double.MAX_VALUE; }
-            // prepare for all document term vector
-            // custom features only
-            // disable unless
-            TermVector[] allDocTermVectors = null;
-            if (!featureDisable[16] || !featureDisable[17]) {
-                allDocTermVectors = new TermVector[relDocs.size()];
-                int cnt = 0;
-                for (String externalid : relDocs.keySet()) {
-                    if (Idx.hasInternalDocid(externalid)) {
-                        int docid = Idx.getInternalDocid(externalid);
-                        TermVector tv = new TermVector(docid, "body");
-                        allDocTermVectors[cnt] = tv;
-                    } else {
-                        allDocTermVectors[cnt] = null;
-                    }
-                    cnt++;
-                }
+            // the judged documents that exist in the index
+            TreeMap<String, Integer> relDocs = queryRelDocs.get(qid);
+            if (relDocs == null) {
+                continue;
             }
-            // create an empty feature vector
-            Map<String, ArrayList<Double>> allFeatures = new TreeMap<String, ArrayList<Double>>();
-            // iterate through all relevance judgements
-            int docidx = 0;
+            TreeMap<String, Integer> docs = new TreeMap<String, Integer>();
             for (String externaldocid : relDocs.keySet()) {
-                // see if we need to ignore
-                if (Idx.hasInternalDocid(externaldocid)) {
-                    int docid = Idx.getInternalDocid(externaldocid);
-                    // process feature
-                    ArrayList<Double> featureVector = 
-                            processFeatureVector(docidx, allDocTermVectors, queryTokens, docid, pageRankMap);
-                    // update statistics
-                    for (int j = 0; j < featureNum; ++j) {
-                        Double currFeature = featureVector.get(j);
-                        if (currFeature != null) {
-                            Double currmin = minFeatures[j];
-                            Double currmax = maxFeatures[j];
-                            if (currFeature > currmax) {
-                                maxFeatures[j] = currFeature;
-                            }
-                            if (currFeature < currmin) {
-                                minFeatures[j] = currFeature;
-                            }
-                        }
-                    }
-                    // put the feature into the global vector
-                    allFeatures.put(externaldocid, featureVector);
+                int docid = extractor.getIndex().lookupInternalDocid(externaldocid);
+                if (docid >= 0) {
+                    docs.put(externaldocid, docid);
                 }
-                docidx++;
             }
-            // normalize the feature values for query q to [0..1]
-            normalizeFeatureVector(maxFeatures, minFeatures, allFeatures);
-            // write the feature vectors to file
-            writeFeatureVectors(relDocs, qid, allFeatures, trainingFeatureVectorsFile);
+            queries.add(new QueryFeatures(qid, queryTokens, relDocs, docs));
         }
-        
-      
-        
+        input.close();
+        // generate training data
+        // the internal trainer keeps the feature vectors in memory
+        boolean trainInternally = "internal".equals(parameters.get("letor:trainer"));
+        generateFeatureVectors(queries, trainingFeatureVectorsFile, trainInternally);
+
         // train
-        // call svmrank to train a model
-        Process trainProc = Runtime.getRuntime().exec(
-                new String[]{svmRankLearnPath, "-c", String.valueOf(svmRankParamC), 
-                        trainingFeatureVectorsFile, svmRankModelFile}
-                );
-        runSVMRank(trainProc);
-        
-         // generate testing data for top 100 documents in initial BM25 rankinig
-        input = new BufferedReader(new FileReader(parameters.get("queryFilePath")));   
-        int queryIdx = 0;
+        if (trainInternally) {
+            List<FeatureMatrix> features = new ArrayList<FeatureMatrix>(queries.size());
+            List<int[]> labels = new ArrayList<int[]>(queries.size());
+            int numTrainingDocs = 0;
+            for (QueryFeatures q : queries) {
+                features.add(q.features);
+                labels.add(q.labels);
+                numTrainingDocs += q.labels.length;
+                q.features = null;
+            }
+            int iterations = parameters.containsKey("letor:trainerIterations") ?
+                    Integer.parseInt(parameters.get("letor:trainerIterations")) : 500;
+            RankSVMTrainer trainer = new RankSVMTrainer(svmRankParamC, iterations, featurePool);
+            trainer.train(features, labels, featureNum).write(svmRankModelFile, numTrainingDocs);
+        } else {
+            // call svmrank to train a model
+            Process trainProc = Runtime.getRuntime().exec(
+                    new String[]{svmRankLearnPath, "-c", String.valueOf(svmRankParamC), 
+                            trainingFeatureVectorsFile, svmRankModelFile}
+                    );
+            runSVMRank(trainProc);
+        }
+    }
+
+    /**
+     * Re-rank the top documents (100 by default) of the initial BM25 ranking of each test query.
+     * @param parameters the parameters provided
+     * */
+    private void rankTestQueries(Map<String, String> parameters) throws Exception {
+        List<QueryFeatures> queries = new ArrayList<QueryFeatures>();
+        String qLine = null;
+        int candidateDepth = parameters.containsKey("letor:candidateDepth") ?
+                Integer.parseInt(parameters.get("letor:candidateDepth")) : 100;
+        // generate testing data for top documents in initial BM25 rankinig
+        BufferedReader input = new BufferedReader(new FileReader(parameters.get("queryFilePath")));   
         while ((qLine = input.readLine()) != null) {
             // use QryEval.tokenizeQuery to stop & stem the query
             int d = qLine.indexOf(':');
@@ -278,359 +470,132 @@ public class RetrievalModelLetor extends RetrievalModel {
                 throw new IllegalArgumentException
                 ("Syntax error:  Missing ':' in query line.");
             }
-            qid = Integer.parseInt(qLine.substring(0, d));
-            query = qLine.substring(d + 1);
+            int qid = Integer.parseInt(qLine.substring(0, d));
+            String query = qLine.substring(d + 1);
             String[] queryTokens = QryParser.tokenizeString(query);
             // run BM25 to create an initial ranking (on body field)
-            ScoreList initialBM25Rank = QryEval.processQuery(query, BM25Model);
-            ScoreList result = new ScoreList();
-            for (int i = 0; i < 100; ++i) {
-                result.add(initialBM25Rank.getDocid(i), initialBM25Rank.getDocidScore(i));
-            }
-            initialBM25Rank = null;
-            // prepare the page rank file
-            Set<String> docs = new HashSet<String>(100);
-            for (int i = 0; i < 100; ++i) {
-                docs.add(Idx.getExternalDocid(result.getDocid(i)));
-            }
-            Map<Integer, Double> pageRankMap = new HashMap<Integer, Double>(docs.size());
-            pageRankMap = processPageRankFile(docs, pageRankFile);
-            // statistics for feature vectors
-            Double[] maxFeatures = new Double[featureNum];
-            for (int i = 0; i < featureNum; ++i) { maxFeatures[i] = -Double.MAX_VALUE; }
-            Double[] minFeatures = new Double[featureNum];
-            for (int i = 0; i < featureNum; ++i) { minFeatures[i] = Double.MAX_VALUE; }
-            // for each document d in the top 100 of initial ranking {
-            // create an empty feature vector
-            // read the PageRank feature from a file
-            // fetch the term vector for d
-            // calculate other features for <q, d>
-            // }
-            // prepare for all document term vector
-            TermVector[] allDocTermVectors = null;
-            if (!featureDisable[16] || !featureDisable[17]) {
-                allDocTermVectors = new TermVector[100];
-                for (int i = 0; i < 100; ++i) {
-                    TermVector tv = new TermVector(result.getDocid(i), "body");
-                    allDocTermVectors[i] = tv;
-                }
-            }
-            // begin to collect features
-            Map<String, ArrayList<Double>> allFeatures = new TreeMap<String, ArrayList<Double>>();  
-            for (int i = 0; i < 100; ++i) {
-                int docid = result.getDocid(i);
-                ArrayList<Double> featureVector = 
-                        processFeatureVector(i, allDocTermVectors, queryTokens, docid, pageRankMap);
-                // collect max & min features across all documents
-                for (int j = 0; j < featureNum; ++j) {
-                    Double currFeature = featureVector.get(j);
-                    // update statistics
-                    if (currFeature != null) {
-                        Double currmin = minFeatures[j];
-                        Double currmax = maxFeatures[j];
-                        if (currFeature > currmax) {
-                            maxFeatures[j] = currFeature;
-                        }
-                        if (currFeature < currmin) {
-                            minFeatures[j] = currFeature;
-                        }
-                    }
-                }
-                // update feature into the global feature vector
-                String externaldocid = Idx.getExternalDocid(docid);
-                allFeatures.put(externaldocid, featureVector);
+            // only the top candidates are kept, fewer if fewer documents match
+            ScoreList initialBM25Rank = TopKRetriever.retrieve(query, BM25Model, candidateDepth,
+                    extractor.getIndex());
+            TreeMap<String, Integer> docs = new TreeMap<String, Integer>();
+            for (int i = 0; i < initialBM25Rank.size(); ++i) {
+                docs.put(initialBM25Rank.getExternalDocid(i), initialBM25Rank.getDocid(i));
             }
-            // normalize the feature values for query q to [0..1]
-            normalizeFeatureVector(maxFeatures, minFeatures, allFeatures);
-            // write the feature vectors to file
-            writeFeatureVectors(null, qid, allFeatures, testingFeatureVectorsFile);
+            queries.add(new QueryFeatures(qid, queryTokens, null, docs));
+        }
+        input.close();
+        // load the linear model once and score each document with a dot product,
+        // unless the external svm_rank_classify is asked for
+        boolean classifyExternally = "external".equals(parameters.get("letor:svmRankClassifyMode"));
+        if (!classifyExternally) {
+            rankModel = SVMRankModel.read(svmRankModelFile);
+        }
+        generateFeatureVectors(queries, testingFeatureVectorsFile, false);
 
-            // re-rank test data
+        // re-rank test data
+        BufferedReader scores = null;
+        if (classifyExternally) {
             // call svmrank to produce scores for the test data
             Process classifyProc = Runtime.getRuntime().exec(
                     new String[]{svmRankClassifyPath, testingFeatureVectorsFile, 
                             svmRankModelFile, testingDocumentScores}
                     );
             runSVMRank(classifyProc);
-            // read in the svmrank scores and re-rank the initial ranking based on the scores
-            // output re-ranked result into trec-eval format
-            // re-rank the initial ranking
-            processSVMRankResult(100 * queryIdx, result, testingDocumentScores);
+            // the scores are in the same order as the feature vectors
+            scores = new BufferedReader(new FileReader(testingDocumentScores));
+        }
+        // re-rank the initial ranking based on the scores
+        // output re-ranked result into trec-eval format
+        for (QueryFeatures q : queries) {
+            ScoreList result = (scores == null) ? 
+                    scoredResult(q) : processSVMRankResult(scores, q);
             result.sort();
             // write out results
-            QryEval.printResults(null, parameters.get("trecEvalOutputPath"), qid + "", result);
-            queryIdx++;
+            QryEval.printResults(null, parameters.get("trecEvalOutputPath"), q.qid + "", result);
         }
-    }
-
-    /**
-     * Calculate the average term frequencies of query terms appear in a document.
-     * @param stemTokens the query terms
-     * @param doc the document
-     * @return the average term frequencies
-     * */
-    private static double averageTf(String[] stemTokens, TermVector doc) {
-        
-        int sum = 0;
-        // count how many terms appear in a document
-        int cnt = 0;
-        
-        for (int i = 0; i < stemTokens.length; ++i) {
-            int idx = doc.indexOfStem(stemTokens[i]);
-            if (idx != -1) {
-                cnt++;
-                sum += doc.stemFreq(idx);
-            }
+        if (scores != null) {
+            scores.close();
         }
-        // if there is no query terms appear in a document, return 0
-        if (cnt == 0) {return 0.0;}
-        // otherwise return average
-        return (double)sum / cnt;
     }
-    
-    /**
-     * Calculate the term frequency deviation.
-     * @param stemTokens the query terms
-     * @param doc the document
-     * @return the term frequency deviation
-     * */
-    private static Double termFreqDeviation(String[] stemTokens, TermVector doc) {
-     
-        // calculate the average term frequency
-        double avgTf = averageTf(stemTokens, doc);
-       
-        // if it is zero, means no query terms appear in a document
-        // then this feature does not apply
-        if (avgTf == 0.0) {
-            return null;
-        }
-        // we have at least one query term in a document
-        double sum = 0.0;
-        for (int i = 0; i < stemTokens.length; ++i) {
-            int idx = doc.indexOfStem(stemTokens[i]);
-            int tf = 0;
-            if (idx != -1) {
-                tf = doc.stemFreq(idx);
-            }
-            double diff = avgTf - tf;
-            // sum over the square distance for deviation
-            sum += diff * diff;
-        }
 
-        return Math.sqrt(sum);
-    }
-    
     /**
-     * Helper function determine whether a term vector is empty.
-     * @param tv the term vector
-     * @return true if empty, false otherwise
-     * */
-    private static boolean emptyTermVector(TermVector tv) {
-        return tv.positionsLength() == 0 || tv.stemsLength() == 0;
-    }
-    
-    /**
-     * Calculate the vagueness feature score.
-     * @param stemTokens the query terms
-     * @param allDocs all of document vectors
-     * @param idx the current document index in allDocs
-     * @return the vagueness score
-     * */
-    private static Double vaguenessScore(String[] stemTokens, 
-            TermVector[] allDocs, int idx) {
-        // get the current document
-        TermVector doc = allDocs[idx];
-        // if it does not exist, this feature does not apply
-        if (stemTokens == null || emptyTermVector(doc)) { return null; }
-        // return the deviation
-        return termFreqDeviation(stemTokens, doc);
-    }
-
-
-    /**
-     * The average English word length.
-     * */
-    private static final double averageEnglishLength = 5.1;
-    /**
-     * Calculate the average length deviation.
-     * @param doc the document
-     * @return the deviation
-     * */
-    private static Double averageLengthNorm(TermVector doc) {
-        
-        if (emptyTermVector(doc)) { return null; }
-        
-        double score = 0.0;
-        // iterate through the terms
-        for (int i = 1; i < doc.stemsLength(); ++i) {
-            double difference = doc.stemString(i).length() - averageEnglishLength;
-            // square to see the deviation
-            score += difference * difference;
-        }
-        return Math.sqrt(score);
-    }
-    
-    /**
-     * Give the feature BM25 score.
-     * @param queryTokens the terms appear in a query
-     * @param field the field
-     * @param docid the document id
-     * @return the score if it has this feature, null otherwise
-     * */
-    private Double featureBM25(String[] queryTokens, String field, int docid) 
-            throws IOException {
-        
-        int docLength = Idx.getFieldLength(field, docid);
-        double avgDocLength = Idx.getSumOfFieldLengths(field) / (double)Idx.getDocCount(field);
-        // add for BM25
-        double score = 0.0;
-        TermVector tv = new TermVector(docid, field);
-        // see if this feature applies
-        if (tv.positionsLength() != 0 && tv.stemsLength() != 0) {
-            for (int i = 0; i < queryTokens.length; ++i) {
-                String qryStem = queryTokens[i];
-                int idx = tv.indexOfStem(qryStem);
-                if (idx != -1) {
-                    double df = (double)tv.stemDf(idx);
-                    double tf = (double)tv.stemFreq(idx);
-                    score += getBM25TermScore(df, tf, docLength, avgDocLength);
-                }
-            }
-            return score;
+     * Generate the feature vectors of all queries in parallel, and write
+     * them in query order with a single writer.
+     * @param queries the queries and their documents
+     * @param outFilePath the output file path
+     * @param keepFeatures true to keep the feature vectors in memory once written
+     * */
+    private void generateFeatureVectors(List<QueryFeatures> queries, String outFilePath,
+            boolean keepFeatures) throws IOException {
+        List<QueryFeatureTask> tasks = new ArrayList<QueryFeatureTask>(queries.size());
+        for (QueryFeatures q : queries) {
+            QueryFeatureTask task = new QueryFeatureTask(q);
+            featurePool.execute(task);
+            tasks.add(task);
         }
-        // does not apply, return null
-        else {
-            return null;
+        // write each query as soon as it and all queries before it are done
+        Writer writer = null;
+        DataOutputStream binaryWriter = null;
+        if (binaryFeatureVectors) {
+            binaryWriter = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(outFilePath), 1 << 16));
+        } else {
+            writer = new BufferedWriter(new FileWriter(outFilePath), 1 << 16);
         }
-    }
-   
-    /**
-     * Give the term score for indri model.
-     * @param mu the indri mu
-     * @param lambda the indri lambda
-     * @param tf the term frequency
-     * @param docLength the document length
-     * @param pMLE the pMLE
-     * @return the term score
-     * */
-    public double getIndriTermScore(double mu, double lambda, 
-            double tf, double docLength, 
-            double pMLE) throws IOException {
-       
-        double leftSmooth = (1.0 - lambda) * (tf + mu * pMLE) / (mu + docLength);
-        double rightSmooth = lambda * pMLE;
-        
-        return leftSmooth + rightSmooth;
-        
-    }
-    
-    /**
-     * Give the feature Indri score.
-     * @param queryTokens the terms appear in a query
-     * @param field the field
-     * @param docid the document id
-     * @return the score if it has this feature, null otherwise
-     * */
-    private Double featureIndri(String[] queryTokens, String field, int docid) 
-            throws Exception {
-        double mu = (double)indriModel.getMu();
-        double lambda = indriModel.getLambda();
-        double docLength = Idx.getFieldLength(field, docid);
-        double termC = (double)Idx.getSumOfFieldLengths(field);
-        // multiplication for indri
-        double score = 1.0;
-        TermVector tv = new TermVector(docid, field);
-        // if the feature applies
-        if (tv.positionsLength() != 0 && tv.stemsLength() != 0) {
-            // see if no query term matches
-            boolean notMatchAnyTerm = true;
-            for (int i = 0; i < queryTokens.length; ++i) {
-                int idx = tv.indexOfStem(queryTokens[i]);
-                if (idx != -1) { notMatchAnyTerm = false; }
-            }
-            if (notMatchAnyTerm) {return 0.0;}
-            // at least one query term matches
-            for (int i = 0; i < queryTokens.length; ++i) {
-                String qryStem = queryTokens[i];
-                int idx = tv.indexOfStem(qryStem);
-                double ctf = Idx.getTotalTermFreq(field, qryStem);
-                double pMLE = ctf / termC;
-                if (idx != -1) {
-                    double tf = (double)tv.stemFreq(idx);
-                    score *= getIndriTermScore(mu, lambda, tf, docLength, pMLE);
+        StringBuilder line = new StringBuilder();
+        try {
+            for (int i = 0; i < tasks.size(); ++i) {
+                tasks.get(i).join();
+                QueryFeatures q = queries.get(i);
+                if (binaryFeatureVectors) {
+                    q.features.writeBinary(binaryWriter, q.qid, q.labels, q.externalIds);
+                } else {
+                    q.features.writeSVMRank(writer, line, q.qid, q.labels, q.externalIds);
                 }
-                // default score
-                else {
-                    score *= getIndriTermScore(mu, lambda, 0.0, docLength, pMLE);
+                if (!keepFeatures) {
+                    q.features = null;
                 }
             }
-            return Math.pow(score, 1.0 / ((double)queryTokens.length));
+        } finally {
+            if (binaryWriter != null) { binaryWriter.close(); }
+            if (writer != null) { writer.close(); }
         }
-        // it does not have this feature
-        else {
-            return null;
+        if (featureCache != null) {
+            featureCache.save();
         }
     }
-    
+
     /**
-     * Process the SVMRank score of the initial ranking.
-     * @param r the initial ranking
-     * @param testingDocumentScores the file path to SVMRank score
+     * Get the in-memory model scores of a query's documents.
+     * @param q the query
+     * @return the documents with their model scores
      * */
-    private void processSVMRankResult(int begin, ScoreList r, String testingDocumentScores) 
-            throws FileNotFoundException {
-        // open the file
-        File svmRankResult = new File(testingDocumentScores);
-        if (!svmRankResult.canRead()) {
-            throw new IllegalArgumentException
-            ("Can't read " + testingDocumentScores);
+    private static ScoreList scoredResult(QueryFeatures q) {
+        ScoreList r = new ScoreList();
+        for (int i = 0; i < q.docids.length; ++i) {
+            r.add(q.docids[i], q.scores[i], q.externalIds[i]);
         }
-
-        Scanner scan = new Scanner(svmRankResult);
-        String line = null;
-        int idx = 0;
-        int cnt = 0;
-        do {
-            line = scan.nextLine();
-            // update the new score
-            if (cnt >= begin) {
-                r.setDocidScore(idx, Double.parseDouble(line));
-                idx++;
-            }
-            cnt++;
-        } while (scan.hasNext() && idx < 100);
-        scan.close();
+        return r;
     }
-    
-    // the feature vector output format
-    static String FEATURE_VECTOR_FORMAT = "%d qid:%d %s # %s\n";
+
     /**
-     * Write the feature vectors to a file.
-     * @param relDocs the relevance judgments
-     * @param qid the query id
-     * @param allfv all features
-     * @param outFilePath the output file path
+     * Read the SVMRank scores of a query's documents.
+     * @param scores the SVMRank score file, positioned at the query
+     * @param q the query
+     * @return the documents with their SVMRank scores
      * */
-    private void writeFeatureVectors(Map<String, Integer> relDocs, int qid,  
-            Map<String, ArrayList<Double>> allfv, String outFilePath) throws FileNotFoundException {
-        
-        PrintWriter writer = new PrintWriter(new FileOutputStream(new File(outFilePath), true));
-        for (String externalid : allfv.keySet()) {
-            ArrayList<Double> fv = allfv.get(externalid);
-            String featureString = "";
-            for (int i = 0; i < fv.size(); ++i) {
-                Double currFeature = fv.get(i);
-                // see if the current feature applies
-                if (currFeature != null) {
-                    featureString += (i + 1) + ":" + fv.get(i) + " ";
-                }
+    private ScoreList processSVMRankResult(BufferedReader scores, QueryFeatures q)
+            throws IOException {
+        ScoreList r = new ScoreList();
+        for (int i = 0; i < q.docids.length; ++i) {
+            String line = scores.readLine();
+            if (line == null) {
+                throw new IllegalArgumentException
+                ("Missing scores in " + testingDocumentScores);
             }
-            // get relevance judgements
-            int relevance = (relDocs == null) ? 0 : relDocs.get(externalid);
-            writer.format(FEATURE_VECTOR_FORMAT, relevance, qid, featureString, externalid);
+            r.add(q.docids[i], Double.parseDouble(line), q.externalIds[i]);
         }
-        
-        writer.close();
+        return r;
     }
     
     /**
@@ -689,240 +654,21 @@ public class RetrievalModelLetor extends RetrievalModel {
         while ((line = stdoutReader.readLine()) != null) {
             //System.out.println(line);
         }
-        // consume stderr and print it for debugging purposes
+        // consume stderr and keep it for the error message
         BufferedReader stderrReader = new BufferedReader(
                 new InputStreamReader(cmdProc.getErrorStream())
                 );
+        StringBuilder stderr = new StringBuilder();
         while ((line = stderrReader.readLine()) != null) {
-            //System.out.println(line);
+            stderr.append(line).append('\n');
         }
         
         // get the return value from the executable. 0 means success, 
         // non-zero indicates a problem
         int retValue = cmdProc.waitFor();
         if (retValue != 0) {
-            throw new Exception("SVM Rank crashed.");
-        }
-    }
-    
-    /**
-     * Normalize the feature vectors.
-     * @param maxFeatures the maximum across all features.
-     * @param minFeatures the minimum across all features.
-     * @param allFeatures all of the features
-     * */
-    private void normalizeFeatureVector(Double[] maxFeatures, Double[] minFeatures,
-            Map<String, ArrayList<Double>> allFeatures) {
-        
-        // for each feature document
-        for (String exdoc : allFeatures.keySet()) {
-            ArrayList<Double> featureV = allFeatures.get(exdoc);
-            // normalize all features
-            for (int i = 0; i < featureNum; ++i) {
-                Double currElt = featureV.get(i);
-                Double maxElt = maxFeatures[i];
-                Double minElt = minFeatures[i];
-                
-                Double range = maxElt - minElt;
-                // if range is 0 or feature does not apply
-                if (currElt == null || range == 0.0) { featureV.set(i, 0.0); }
-                else {
-                    featureV.set(i, (currElt - minElt) / range);
-                }
-            }
-        }
-    }
-    
-    /**
-     * Helper to get Url depth.
-     * @param rawUrl the url
-     * @return the depth
-     * */
-    private Double getUrlDepth(String rawUrl) {
-        // does not apply
-        if (rawUrl == null) {
-            return null;
-        }
-        
-        int cnt = 0;
-        for (int i = 0; i < rawUrl.length(); ++i) {
-            if (rawUrl.charAt(i) == '/') { cnt++; }
-        }
-        // minus out the double slash
-        cnt -= 2;
-        return (double)cnt;
-    }
-    
-    /**
-     * Helper function to get wiki score.
-     * @param rawUrl the url
-     * @return 1 if has wiki, 0 no, null does not apply
-     * */
-    private Double getWikiScore(String rawUrl) {
-        if (rawUrl == null) {
-            return null;
-        }
-        
-        return rawUrl.contains("wikipedia.org") ? 1.0 : 0.0;
-    }
-    
-    /**
-     * Add feature based on the disabled vector.
-     * @param isDisable see if this feature is disabled.
-     * @param score the score to be returned
-     * @return null if is disabled, score otherwise
-     * */
-    private static Double addFeature(boolean isDisable, Double score) {
-        if (isDisable) { return null; }
-        else { return score; }
-    }
-    
-    /**
-     * To process the feature vectors.
-     * @param queryStems the terms within a query
-     * @param docid the document id
-     * @return the feature vector
-     * */
-    private ArrayList<Double> processFeatureVector(int idx, TermVector[] allDocTermVectors, 
-            String[] queryStems, int docid, 
-            Map<Integer, Double> pageRankMap) 
-            throws Exception {
-        // empty feature vector
-        ArrayList<Double> featureVector = new ArrayList<Double>(featureNum);
-        String rawUrl = Idx.getAttribute("rawUrl", docid);
-        
-        // f1: Spam score for d (read from index).
-        featureVector.add(addFeature(featureDisable[0], 
-                        Double.parseDouble((Idx.getAttribute("score", docid)))));
-        
-        // f2: Url depth for d(number of '/' in the rawUrl field).
-        featureVector.add(addFeature(featureDisable[1],
-                        getUrlDepth(rawUrl)));
-        
-        // f3: FromWikipedia score for d (1 if the rawUrl contains "wikipedia.org", otherwise 0).
-        featureVector.add(addFeature(featureDisable[2], 
-                        getWikiScore(rawUrl)));
-        
-        // f4: PageRank score for d (read from file).
-        Double toInsert = pageRankMap.get(docid);
-        featureVector.add(addFeature(featureDisable[3], 
-                        toInsert));
-        
-        // f5: BM25 score for <q, dbody>.
-        featureVector.add(addFeature(featureDisable[4], 
-                    featureBM25(queryStems, "body", docid)));
-        
-        // f6: Indri score for <q, dbody>.
-        featureVector.add(addFeature(featureDisable[5], 
-                    featureIndri(queryStems, "body", docid)));
-        
-        // f7: Term overlap score for <q, dbody>.
-        featureVector.add(addFeature(featureDisable[6], 
-                    calculateOverlap(queryStems, "body", docid)));
-        
-        // f8: BM25 score for <q, dtitle>.
-        featureVector.add(addFeature(featureDisable[7], 
-                    featureBM25(queryStems, "title", docid)));
-        
-        // f9: Indri score for <q, dtitle>.
-        featureVector.add(addFeature(featureDisable[8], 
-                    featureIndri(queryStems, "title", docid)));
-        
-        // f10: Term overlap score for <q, dtitle>.
-        featureVector.add(addFeature(featureDisable[9], 
-                    calculateOverlap(queryStems, "title", docid)));
-        
-        // f11: BM25 score for <q, durl>.
-        featureVector.add(addFeature(featureDisable[10], 
-                    featureBM25(queryStems, "url", docid)));
-        
-        // f12: Indri score for <q, durl>.
-        featureVector.add(addFeature(featureDisable[11], 
-                    featureIndri(queryStems, "url", docid)));
-        
-        // f13: Term overlap score for <q, durl>.
-        featureVector.add(addFeature(featureDisable[12], 
-                    calculateOverlap(queryStems, "url", docid)));
-        
-        // f14: BM25 score for <q, dinlink>.
-        featureVector.add(addFeature(featureDisable[13], 
-                    featureBM25(queryStems, "inlink", docid)));
-        
-        // f15: Indri score for <q, dinlink>.
-        featureVector.add(addFeature(featureDisable[14], 
-                    featureIndri(queryStems, "inlink", docid)));
-        
-        // f16: Term overlap score for <q, dinlink>.
-        featureVector.add(addFeature(featureDisable[15], 
-                    calculateOverlap(queryStems, "inlink", docid)));
-        
-        // f17: norm of average length deviation
-        if (allDocTermVectors == null) {
-            featureVector.add(null);
-        } else {
-            featureVector.add(addFeature(featureDisable[16], 
-                    averageLengthNorm(allDocTermVectors[idx])));
-        }
-        // f18: query vagueness
-        if (allDocTermVectors == null) {
-            featureVector.add(null);
-        } else {
-            featureVector.add(addFeature(featureDisable[17],
-                    vaguenessScore(queryStems, allDocTermVectors, idx)));
-        }
-        
-        return featureVector;
-    }
-    
-    /**
-     * Helper function to calculate overlap.
-     * @param queryTokens all query terms
-     * @param field the field
-     * @param docid the document id
-     * @return the overlap score.
-     * */
-    private Double calculateOverlap(String[] queryTokens, String field, int docid) 
-            throws IOException {
-        
-        int cnt = 0;
-        TermVector tv = new TermVector(docid, field);
-        if (tv.positionsLength() != 0 && tv.stemsLength() != 0) {
-            for (int i = 0; i < queryTokens.length; ++i) {
-                String qryStem = queryTokens[i];
-                int idx = tv.indexOfStem(qryStem);
-                if (idx != -1) { cnt++; }
-            }
-            return (double)cnt / (double)queryTokens.length;
-        } 
-        // does not apply
-        else {
-            return null;
-        }
-    }
-    
-    /**
-     * Process the page rank file and store internally.
-     * @param pageRankFile_ the path to page rank file
-     * @return the <docid, pagerank> pair map
-     * */
-    private Map<Integer, Double> processPageRankFile(Set<String> docs, 
-            String PageRankFile_) throws Exception {
-        
-        Map<Integer, Double> corpusPageRank = new HashMap<Integer, Double>(docs.size());
-        
-        FileInputStream pageRank = new FileInputStream(PageRankFile_);
-        BufferedReader br = new BufferedReader(new InputStreamReader(pageRank));
-        
-        String line = null;
-        while ((line = br.readLine()) != null) {
-             String[] pair = line.split("\t");
-             String externalid = pair[0];
-             if (docs.contains(externalid) && Idx.hasInternalDocid(externalid)) {
-                 float prscore = Float.parseFloat(pair[1]);
-                 corpusPageRank.put(Idx.getInternalDocid(pair[0]), (double)prscore);
-             }
+            throw new Exception("SVM Rank crashed.\n" + stderr);
         }
-        return corpusPageRank;
     }
     
     /**
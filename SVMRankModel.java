@@ -0,0 +1,175 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A linear ranking model in the SVM-light model format written by svm_rank_learn.
+ * The support vectors of a linear model collapse into a single weight vector,
+ * so a document is scored with one dot product, the same score that
+ * svm_rank_classify writes for it.
+ * */
+public class SVMRankModel {
+
+    /**
+     * The weight of each feature; weights[i] is the weight of feature i + 1.
+     * */
+    private double[] weights;
+    /**
+     * The threshold b, subtracted from every score.
+     * */
+    private double threshold;
+
+    /**
+     * Constructor.
+     * @param weights_ the weight of each feature, starting at feature 1
+     * @param threshold_ the threshold b
+     * */
+    public SVMRankModel(double[] weights_, double threshold_) {
+        weights = weights_;
+        threshold = threshold_;
+    }
+
+    /**
+     * Read a model file written by svm_rank_learn.
+     * @param modelFile the file path to the model
+     * @return the model
+     * @throws IOException Error accessing the file.
+     * */
+    public static SVMRankModel read(String modelFile) throws IOException {
+        BufferedReader input = new BufferedReader(new FileReader(modelFile));
+        try {
+            String line = null;
+            int kernelType = -1;
+            double threshold = 0.0;
+            boolean supportVectors = false;
+            List<double[]> vectors = new ArrayList<double[]>();
+            List<Double> alphas = new ArrayList<Double>();
+            int dimension = 0;
+            while ((line = input.readLine()) != null) {
+                // the header lines are "value # description"
+                if (!supportVectors) {
+                    String value = line.split("#", 2)[0].trim();
+                    if (line.contains("# kernel type")) {
+                        kernelType = Integer.parseInt(value);
+                    } else if (line.contains("# highest feature index")) {
+                        dimension = Integer.parseInt(value);
+                    } else if (line.contains("# threshold b")) {
+                        threshold = Double.parseDouble(value);
+                        supportVectors = true;
+                    }
+                    continue;
+                }
+                // each following line is a support vector "alpha*y idx:value ... #"
+                String[] tokens = line.split("#", 2)[0].trim().split("\\s+");
+                if (tokens.length == 0 || tokens[0].isEmpty()) {
+                    continue;
+                }
+                double[] vector = new double[dimension];
+                for (int i = 1; i < tokens.length; ++i) {
+                    int colon = tokens[i].indexOf(':');
+                    int idx = Integer.parseInt(tokens[i].substring(0, colon));
+                    if (idx > vector.length) {
+                        double[] larger = new double[idx];
+                        System.arraycopy(vector, 0, larger, 0, vector.length);
+                        vector = larger;
+                    }
+                    vector[idx - 1] = Double.parseDouble(tokens[i].substring(colon + 1));
+                }
+                alphas.add(Double.parseDouble(tokens[0]));
+                vectors.add(vector);
+            }
+            if (kernelType != 0) {
+                throw new IllegalArgumentException
+                ("Only linear svm_rank models are supported: " + modelFile);
+            }
+            // collapse the support vectors into one weight vector
+            for (double[] vector : vectors) {
+                dimension = Math.max(dimension, vector.length);
+            }
+            double[] weights = new double[dimension];
+            for (int v = 0; v < vectors.size(); ++v) {
+                double alpha = alphas.get(v);
+                double[] vector = vectors.get(v);
+                for (int i = 0; i < vector.length; ++i) {
+                    weights[i] += alpha * vector[i];
+                }
+            }
+            return new SVMRankModel(weights, threshold);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Write the model in the format of svm_rank_learn, as a linear
+     * model with a single support vector, so that svm_rank_classify
+     * can also use it.
+     * @param modelFile the file path to the model
+     * @param numTrainingDocs the number of training documents
+     * @throws IOException Error accessing the file.
+     * */
+    public void write(String modelFile, int numTrainingDocs) throws IOException {
+        PrintWriter writer = new PrintWriter(modelFile);
+        try {
+            writer.print("SVM-light Version V6.20\n");
+            writer.print("0 # kernel type\n");
+            writer.print("3 # kernel parameter -d \n");
+            writer.print("1 # kernel parameter -g \n");
+            writer.print("1 # kernel parameter -s \n");
+            writer.print("1 # kernel parameter -r \n");
+            writer.print("empty# kernel parameter -u \n");
+            writer.print(weights.length + " # highest feature index \n");
+            writer.print(numTrainingDocs + " # number of training documents \n");
+            writer.print("2 # number of support vectors plus 1 \n");
+            writer.print(threshold + " # threshold b, each following line is a SV (starting with alpha*y)\n");
+            StringBuilder sv = new StringBuilder("1 ");
+            for (int i = 0; i < weights.length; ++i) {
+                if (weights[i] != 0.0) {
+                    sv.append(i + 1).append(':').append(weights[i]).append(' ');
+                }
+            }
+            sv.append("#\n");
+            writer.print(sv.toString());
+            if (writer.checkError()) {
+                throw new IOException("Can't write " + modelFile);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Score a feature vector.
+     * @param features the feature values; features[i] is feature i + 1
+     * @return the score
+     * */
+    public double score(double[] features) {
+        double score = -threshold;
+        int length = Math.min(features.length, weights.length);
+        for (int i = 0; i < length; ++i) {
+            score += weights[i] * features[i];
+        }
+        return score;
+    }
+
+    /**
+     * Score a row of a feature matrix.
+     * @param features the feature matrix
+     * @param doc the document row
+     * @return the score
+     * */
+    public double score(FeatureMatrix features, int doc) {
+        double[] values = features.getValues();
+        int numFeatures = features.getNumFeatures();
+        int base = doc * numFeatures;
+        double score = -threshold;
+        int length = Math.min(numFeatures, weights.length);
+        for (int i = 0; i < length; ++i) {
+            score += weights[i] * values[base + i];
+        }
+        return score;
+    }
+}
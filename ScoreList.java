@@ -11,23 +11,31 @@ import java.util.*;
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  The external docid is a stored-field read, so it is
+  //  looked up only when it is needed, in the index that the list
+  //  was produced from.
 
   private class ScoreListEntry {
     private int docid;
     private String externalId;
     private double score;
 
-    private ScoreListEntry(int internalDocid, double score) {
+    private ScoreListEntry(int internalDocid, double score, String externalId) {
       this.docid = internalDocid;
       this.score = score;
+      this.externalId = externalId;
+    }
 
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
+    private String getExternalId() {
+      if (this.externalId == null) {
+	try {
+	  this.externalId = index.getExternalDocid (this.docid);
+	}
+	catch (IOException ex){
+	  ex.printStackTrace();
+	}
       }
+      return this.externalId;
     }
   }
 
@@ -36,13 +44,54 @@ public class ScoreList {
    */
   private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+  /**
+   *  The index that the internal document ids belong to.  External
+   *  ids are resolved in it, even if the current index has changed
+   *  since, e.g., when results are written on another thread.
+   */
+  private final IndexHandle index;
+
+  /**
+   *  Create an empty score list for the current index.
+   */
+  public ScoreList() {
+    this(Idx.getCurrentIndex ());
+  }
+
+  /**
+   *  Create an empty score list for an index.
+   *  @param index The index that the internal document ids belong to.
+   */
+  public ScoreList(IndexHandle index) {
+    this.index = index;
+  }
+
+  /**
+   *  Get the index that the internal document ids belong to.
+   *  @return The index.
+   */
+  public IndexHandle getIndex() {
+    return this.index;
+  }
+
   /**
    *  Append a document score to a score list.
    *  @param docid An internal document id.
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+    scores.add(new ScoreListEntry(docid, score, null));
+  }
+
+  /**
+   *  Append a document score to a score list when the external
+   *  document id is already known.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @param externalId The document's external id, or null if unknown.
+   */
+  public void add(int docid, double score, String externalId) {
+    scores.add(new ScoreListEntry(docid, score, externalId));
   }
 
   /**
@@ -54,6 +103,15 @@ public class ScoreList {
     return this.scores.get(n).docid;
   }
 
+  /**
+   *  Get the external docid of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   */
+  public String getExternalDocid(int n) {
+    return this.scores.get(n).getExternalId();
+  }
+
   /**
    *  Get the score of the n'th entry.
    *  @param n The index of the requested document score.
@@ -94,10 +152,10 @@ public class ScoreList {
 	if (s1.score < s2.score)
 	  return 1;
 	else
-	  if (s1.externalId.compareTo(s2.externalId) > 0)
+	  if (s1.getExternalId().compareTo(s2.getExternalId()) > 0)
 	    return 1;
 	  else
-	    if (s1.externalId.compareTo(s2.externalId) < 0)
+	    if (s1.getExternalId().compareTo(s2.getExternalId()) < 0)
 	      return -1;
 	    else
 	      return 0;
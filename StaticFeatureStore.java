@@ -0,0 +1,149 @@
+import java.io.IOException;
+
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+/**
+ * The query-independent learning to rank features of every document:
+ * f1 spam score, f2 url depth and f3 FromWikipedia. They are computed
+ * once per index from the stored fields into a docid-indexed column
+ * store, persisted as a sidecar file next to the index, so feature
+ * extraction never reads stored fields.
+ * <p>
+ * Run the class on its own to build the sidecar offline:
+ * java StaticFeatureStore indexPath [sidecarFile]
+ * </p>
+ * */
+public class StaticFeatureStore {
+
+    /**
+     * The default suffix of the sidecar file, appended to the index path.
+     * */
+    private static final String SIDECAR_SUFFIX = ".static";
+    /**
+     * The columns of the store.
+     * */
+    private static final int SPAM_SCORE = 0;
+    private static final int URL_DEPTH = 1;
+    private static final int WIKIPEDIA = 2;
+    private static final int NUM_COLUMNS = 3;
+
+    /**
+     * The feature columns, indexed by internal docid. NaN means the feature does not apply.
+     * */
+    private float[] spamScores;
+    private float[] urlDepths;
+    private float[] wikipedia;
+
+    /**
+     * Constructor.
+     * @param store the column store
+     * */
+    private StaticFeatureStore(DocColumnStore store) {
+        spamScores = store.getColumn(SPAM_SCORE);
+        urlDepths = store.getColumn(URL_DEPTH);
+        wikipedia = store.getColumn(WIKIPEDIA);
+    }
+
+    /**
+     * Open the store for the current index. The sidecar file is used
+     * if it was built from the same index, otherwise it is rebuilt.
+     * @param sidecarFile the sidecar file path, or null to put it next to the index
+     * @return the store
+     * @throws IOException Error accessing the files or the index.
+     * */
+    public static StaticFeatureStore open(String sidecarFile) throws IOException {
+        if (sidecarFile == null) {
+            sidecarFile = Idx.getIndexPath() + SIDECAR_SUFFIX;
+        }
+        int maxDoc = Idx.getMaxDoc();
+        long signature = Idx.getIndexSignature();
+
+        DocColumnStore store = DocColumnStore.read(sidecarFile, NUM_COLUMNS, maxDoc, signature);
+        if (store == null) {
+            store = build(maxDoc);
+            store.write(sidecarFile, signature);
+        }
+        return new StaticFeatureStore(store);
+    }
+
+    /**
+     * Compute the features of every live document from its stored fields.
+     * @param maxDoc the size of the columns
+     * @return the column store
+     * */
+    private static DocColumnStore build(int maxDoc) throws IOException {
+        DocColumnStore store = new DocColumnStore(NUM_COLUMNS, maxDoc);
+        float[] spamScores = store.getColumn(SPAM_SCORE);
+        float[] urlDepths = store.getColumn(URL_DEPTH);
+        float[] wikipedia = store.getColumn(WIKIPEDIA);
+
+        Bits liveDocs = MultiFields.getLiveDocs(Idx.getIndexReader());
+        for (int docid = 0; docid < maxDoc; ++docid) {
+            if (liveDocs != null && !liveDocs.get(docid)) {
+                continue;
+            }
+            String[] attributes = Idx.getAttributes(docid, "score", "rawUrl");
+            if (attributes[0] != null) {
+                spamScores[docid] = Float.parseFloat(attributes[0]);
+            }
+            String rawUrl = attributes[1];
+            if (rawUrl != null) {
+                int cnt = 0;
+                for (int i = 0; i < rawUrl.length(); ++i) {
+                    if (rawUrl.charAt(i) == '/') { cnt++; }
+                }
+                // minus out the double slash
+                urlDepths[docid] = cnt - 2;
+                wikipedia[docid] = rawUrl.contains("wikipedia.org") ? 1.0f : 0.0f;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Get the spam score of a document (f1).
+     * @param docid the internal docid
+     * @return the score, NaN if the document has none
+     * */
+    public double getSpamScore(int docid) {
+        return spamScores[docid];
+    }
+
+    /**
+     * Get the url depth of a document (f2), the number of '/' in its rawUrl after the scheme.
+     * @param docid the internal docid
+     * @return the depth, NaN if the document has no rawUrl
+     * */
+    public double getUrlDepth(int docid) {
+        return urlDepths[docid];
+    }
+
+    /**
+     * Get the FromWikipedia score of a document (f3).
+     * @param docid the internal docid
+     * @return 1 if the rawUrl contains "wikipedia.org", 0 if not, NaN if the document has no rawUrl
+     * */
+    public double getWikipediaScore(int docid) {
+        return wikipedia[docid];
+    }
+
+    /**
+     * Build the sidecar file of an index offline.
+     * @param args the index path, and optionally the sidecar file path
+     * @throws Exception Error accessing the index or the file.
+     * */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage:  java StaticFeatureStore indexPath [sidecarFile]");
+            System.exit(1);
+        }
+        Idx.open(args[0]);
+        String sidecarFile = (args.length > 1) ? args[1] : args[0] + SIDECAR_SUFFIX;
+        long start = System.currentTimeMillis();
+        DocColumnStore store = build(Idx.getMaxDoc());
+        store.write(sidecarFile, Idx.getIndexSignature());
+        System.out.println("Wrote " + sidecarFile + " (" + Idx.getMaxDoc() + " documents) in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+}
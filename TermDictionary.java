@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.Term;
+
+/**
+ * A dictionary of the stems of one field of an index. Each stem seen
+ * gets a dense int id, and its df and ctf are asked from Lucene once
+ * and cached, so consumers of term vectors work with int ids and array
+ * lookups instead of strings and index statistics.
+ * <p>
+ * There is one dictionary per field of each IndexHandle, shared by all
+ * threads. Ids are handed out in the order stems are first seen, so they
+ * are only meaningful within a run and within the index.
+ * </p>
+ * */
+public class TermDictionary {
+
+    /**
+     * A df or ctf that was not asked from Lucene yet.
+     * */
+    private static final long UNKNOWN = -1L;
+
+    /**
+     * The index and the field name.
+     * */
+    private IndexHandle index;
+    private String field;
+    /**
+     * The id of each stem.
+     * */
+    private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    /**
+     * The stem, df and ctf of each id. The arrays are replaced, never
+     * shrunk, when they grow, and ids below size are always in them.
+     * */
+    private volatile String[] stems = new String[64];
+    private volatile long[] dfs = newStats(64);
+    private volatile long[] ctfs = newStats(64);
+    private volatile int size = 0;
+
+    /**
+     * Constructor, for IndexHandle.getTermDictionary.
+     * @param index_ the index
+     * @param field_ the field name
+     * */
+    TermDictionary(IndexHandle index_, String field_) {
+        index = index_;
+        field = field_;
+    }
+
+    /**
+     * Get the dictionary of a field of the current index.
+     * @param field the field name
+     * @return the dictionary
+     * */
+    public static TermDictionary get(String field) {
+        return Idx.getCurrentIndex().getTermDictionary(field);
+    }
+
+    private static long[] newStats(int length) {
+        long[] stats = new long[length];
+        Arrays.fill(stats, UNKNOWN);
+        return stats;
+    }
+
+    /**
+     * Get the field name.
+     * @return the field name
+     * */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * Get the number of stems in the dictionary.
+     * @return the number of ids handed out
+     * */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the id of a stem, adding the stem if it is new.
+     * @param stem the stem
+     * @return the id
+     * */
+    public int idOf(String stem) {
+        Integer id = ids.get(stem);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(stem);
+            if (id != null) {
+                return id;
+            }
+            int newId = size;
+            if (newId == stems.length) {
+                int length = stems.length * 2;
+                stems = Arrays.copyOf(stems, length);
+                long[] newDfs = newStats(length);
+                System.arraycopy(dfs, 0, newDfs, 0, newId);
+                dfs = newDfs;
+                long[] newCtfs = newStats(length);
+                System.arraycopy(ctfs, 0, newCtfs, 0, newId);
+                ctfs = newCtfs;
+            }
+            stems[newId] = stem;
+            // the stem is visible before its id is published
+            size = newId + 1;
+            ids.put(stem, newId);
+            return newId;
+        }
+    }
+
+    /**
+     * Get the id of a stem without adding it.
+     * @param stem the stem
+     * @return the id, or -1 if the stem is not in the dictionary
+     * */
+    public int lookup(String stem) {
+        Integer id = ids.get(stem);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Get the stem of an id.
+     * @param id the id
+     * @return the stem
+     * */
+    public String stem(int id) {
+        return stems[id];
+    }
+
+    /**
+     * Get the number of documents that contain a stem in the field.
+     * @param id the id
+     * @return the df
+     * @throws IOException Error accessing the Lucene index
+     * */
+    public int df(int id) throws IOException {
+        long df = dfs[id];
+        if (df == UNKNOWN) {
+            df = index.getReader().docFreq(new Term(field, stems[id]));
+            store(id, df, true);
+        }
+        return (int) df;
+    }
+
+    /**
+     * Get the number of occurrences of a stem in the field of every document.
+     * @param id the id
+     * @return the ctf
+     * @throws IOException Error accessing the Lucene index
+     * */
+    public long ctf(int id) throws IOException {
+        long ctf = ctfs[id];
+        if (ctf == UNKNOWN) {
+            ctf = index.getReader().totalTermFreq(new Term(field, stems[id]));
+            store(id, ctf, false);
+        }
+        return ctf;
+    }
+
+    /**
+     * Cache a statistic. It is stored under the lock, so a copy made while
+     * the arrays grow cannot lose it.
+     * */
+    private synchronized void store(int id, long value, boolean isDf) {
+        if (isDf) {
+            dfs[id] = value;
+        } else {
+            ctfs[id] = value;
+        }
+    }
+}
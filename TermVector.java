@@ -5,7 +5,6 @@
 import java.io.*;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 
@@ -23,6 +22,8 @@ public class TermVector {
 
   //  --------------- Constants and variables ---------------------
 
+  private static final int UNRESOLVED = -2;	// A stem id not resolved yet
+
   /**
    *  The internal id of the document that the TermVector represents.
    */
@@ -33,12 +34,13 @@ public class TermVector {
    */
   public String fieldName;
 
+  private IndexHandle index;	// The index the term vector is read from
   private int fieldLength;
-  private Terms luceneTerms;
   private int[] positions;	// Index of the stem that at this position
   private String[] stems;	// The vocabulary. 0 indicates a stopword
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
-  private Term[] terms;
+  private volatile int[] stemIds;	// TermDictionary ids, resolved by stemId
+  private volatile int[] stemTable;	// Stem hash table, built by indexOfStem
 
   //  --------------- Methods ---------------------------------------
 
@@ -48,69 +50,105 @@ public class TermVector {
    *  @throws IOException Error accessing the Lucene index
    **/
   public TermVector(int docId, String fieldName) throws IOException {
+    this (docId, fieldName, true);
+  }
+
+  /**
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @param withPositions False to skip decoding positions, for
+   *         callers that only need stems and frequencies.
+   *  @throws IOException Error accessing the Lucene index
+   **/
+  public TermVector(int docId, String fieldName, boolean withPositions)
+    throws IOException {
+    this (Idx.getCurrentIndex (), docId, fieldName, withPositions);
+  }
+
+  /**
+   *  @param index The index that contains the document.
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @param withPositions False to skip decoding positions, for
+   *         callers that only need stems and frequencies.
+   *  @throws IOException Error accessing the Lucene index
+   **/
+  public TermVector(IndexHandle index, int docId, String fieldName,
+                    boolean withPositions)
+    throws IOException {
+    this.index = index;
     this.docId = docId;
     this.fieldName = fieldName;
     this.fieldLength = 0;
 
     //  Fetch the term vector, if one exists.
 
-    this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+    Terms luceneTerms = index.getReader ().getTermVector(docId, fieldName);
 
     //  If Lucene doesn't have a term vector, our TermVector is empty.
     
-    if (this.luceneTerms == ((Terms) null)) {
+    if (luceneTerms == ((Terms) null)) {
       return;
     }
 
     //  Allocate space for stems. The 0'th stem indicates a stopword.
 
-    int stemsLength = (int) this.luceneTerms.size();
+    int stemsLength = (int) luceneTerms.size();
     stems = new String[stemsLength + 1];
-    terms = new Term[stemsLength + 1];
     stemsFreq = new int[stemsLength + 1];
 
-    //  Iterate through the terms, filling in the stem and frequency
-    //  information, and finding the position of the last term. The
-    //  0'th term indicates a stopword, so this loop starts at i=1.
-
-    TermsEnum ithTerm = this.luceneTerms.iterator(null);
-    
+    //  Iterate through the terms once, filling in the stem and
+    //  frequency information.  If positions are wanted, each
+    //  (position, stem) pair is buffered and the last position is
+    //  tracked, so the positions array can be filled without a
+    //  second pass over the Lucene term vector.  The 0'th term
+    //  indicates a stopword, so this loop starts at i=1.
+
+    TermsEnum ithTerm = luceneTerms.iterator(null);
+    DocsAndPositionsEnum ithPositions = null;
+    int[] pairs = withPositions ? new int[64] : null;
+    int numPairs = 0;
     int lastPosition = 0;
+
     for (int i = 1; ithTerm.next() != null; i++) {
       stems[i] = ithTerm.term().utf8ToString();
-      terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
       stemsFreq[i] = (int) ithTerm.totalTermFreq();
       fieldLength += stemsFreq[i]; 
 
-      //  Find the position of the last (indexed) term in the
-      //  document, so that the positions array can be created and
-      //  populated later. The last position for each term is the
-      //  largest, so ignore the positions before it.
-
-      DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
+      if (! withPositions)
+        continue;
 
+      ithPositions = ithTerm.docsAndPositions(null, ithPositions);
       ithPositions.nextDoc(); /* Initialize iPositions */
 
-      for (int j = 0; j < ithPositions.freq() - 1; j++)
-        ithPositions.nextPosition();
-
-      lastPosition = Math.max(lastPosition, ithPositions.nextPosition());
+      for (int j = 0; j < ithPositions.freq(); j++) {
+        int position = ithPositions.nextPosition();
+        if (2 * numPairs + 2 > pairs.length)
+          pairs = java.util.Arrays.copyOf(pairs, pairs.length * 2);
+        pairs[2 * numPairs] = position;
+        pairs[2 * numPairs + 1] = i;
+        numPairs++;
+        lastPosition = Math.max(lastPosition, position);
+      }
     }
 
+    if (! withPositions)
+      return;
+
     // Create and fill the positions array. Since we have position indexes, the array's size needs 
     // to be one bigger than the biggest position.
     positions = new int[lastPosition + 1];
 
-    ithTerm = this.luceneTerms.iterator(null);
-
-    for (int i = 0; ithTerm.next() != null; i++) {
-      DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
-
-      ithPositions.nextDoc(); /* Initialize iPositions */
+    for (int p = 0; p < numPairs; p++)
+      positions[pairs[2 * p]] = pairs[2 * p + 1];
+  }
 
-      for (int j = 0; j < ithPositions.freq(); j++)
-        positions[ithPositions.nextPosition()] = i + 1;
-    }
+  /**
+   *  Whether positions were decoded for this term vector.
+   *  @return true if positions are available.
+   */
+  public boolean hasPositions () {
+    return (this.positions != null) || (this.fieldLength == 0);
   }
 
   /**
@@ -120,21 +158,57 @@ public class TermVector {
    *  @return the index of the stem in the stems vector, or -1 if it does not occur.
    */
   public int indexOfStem (String stem) {
-    
-    for (int s=1; s<this.stems.length; s++)
-      if (stem.equals (this.stems [s]))
-	return s;
+
+    if (this.stems == null)
+      return -1;
+
+    //  Probe the stem hash table, building it on first use.
+
+    int[] table = this.stemTable;
+
+    if (table == null)
+      table = buildStemTable ();
+
+    int mask = table.length - 1;
+
+    for (int slot = stem.hashCode () & mask; table[slot] != 0; slot = (slot + 1) & mask)
+      if (stem.equals (this.stems [table[slot]]))
+	return table[slot];
     
     return -1;
   }
 
+  /**
+   *  Build an open-addressing hash table of the stems, with linear
+   *  probing and a load factor of at most 0.5.  A slot holds the index
+   *  of a stem, or 0 if it is empty.  Threads that share a term vector
+   *  may each build the table; they build identical tables.
+   *  @return the table.
+   */
+  private int[] buildStemTable () {
+
+    int size = Integer.highestOneBit (Math.max (this.stems.length, 2) * 2 - 1) * 2;
+    int mask = size - 1;
+    int[] table = new int[size];
+
+    for (int s=1; s<this.stems.length; s++) {
+      int slot = this.stems [s].hashCode () & mask;
+      while (table[slot] != 0)
+	slot = (slot + 1) & mask;
+      table[slot] = s;
+    }
+
+    this.stemTable = table;
+    return table;
+  }
+
   /**
    *  Get the number of positions in this field (the length of the
    *  field). If positions are not stored, it returns 0.
    *  @return The number of positionsin this field (the field length).
    */
   public int positionsLength() {
-    if (this.fieldLength == 0)
+    if ((this.fieldLength == 0) || (this.positions == null))
       return 0;
 
     return this.positions.length;
@@ -147,7 +221,7 @@ public class TermVector {
    *  @return Index of the stem.
    */
   public int stemAt(int i) {
-    if (i < positions.length)
+    if ((positions != null) && (i < positions.length))
       return positions[i];
     else
       return -1;
@@ -197,7 +271,7 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    return index.getTermDictionary (fieldName).ctf (stemId (i));
   }
   
   /**
@@ -207,7 +281,37 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    return index.getTermDictionary (fieldName).df (stemId (i));
+  }
+
+  /**
+   *  Get the TermDictionary id of the i'th stem.  Ids are shared by all
+   *  term vectors of the field, so they can index arrays directly.  An
+   *  id is resolved on first use, so decoding a term vector does not
+   *  touch the dictionary; threads that share a term vector may each
+   *  resolve an id, and they resolve the same one.
+   *  @param i Index of the stem.
+   *  @return the id of the stem, or -1 for the stopword entry.
+   */
+  public int stemId(int i) {
+
+    int[] ids = this.stemIds;
+
+    if (ids == null) {
+      ids = new int[this.stems.length];
+      java.util.Arrays.fill (ids, UNRESOLVED);
+      ids[0] = -1;
+      this.stemIds = ids;
+    }
+
+    int id = ids[i];
+
+    if (id == UNRESOLVED) {
+      id = index.getTermDictionary (fieldName).idOf (this.stems[i]);
+      ids[i] = id;
+    }
+
+    return id;
   }
   
 }
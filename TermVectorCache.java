@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of decoded term vectors, keyed by (index, field,
+ * docid).
+ * Decoding a term vector walks the whole forward list of a document, and
+ * the same documents are decoded again and again: by feedback across
+ * queries, and by learning to rank across training and test runs.
+ * <p>
+ * A lightweight request skips position decoding. A full term vector
+ * also serves a lightweight request, but a lightweight one is replaced
+ * when positions are requested. The cache is disabled until it is
+ * given a positive size.
+ * </p>
+ * */
+public class TermVectorCache {
+
+    /**
+     * The maximum number of term vectors, 0 for no caching.
+     * */
+    private static int capacity = 0;
+
+    /**
+     * The cached term vectors in access order.
+     * */
+    private static LinkedHashMap<Long, TermVector> cache = newCache();
+
+    /**
+     * The ids of the (index, field) pairs seen so far, used in the cache keys.
+     * */
+    private static Map<IndexHandle, Map<String, Integer>> fieldIds =
+            new IdentityHashMap<IndexHandle, Map<String, Integer>>();
+    private static int numFieldIds = 0;
+
+    /**
+     * The statistics of the cache.
+     * */
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long evictions = 0;
+
+    /**
+     * Create the access ordered map, which drops its eldest entry when full.
+     * */
+    private static LinkedHashMap<Long, TermVector> newCache() {
+        return new LinkedHashMap<Long, TermVector>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, TermVector> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Set the maximum number of cached term vectors, emptying the cache.
+     * @param capacity_ the maximum number of term vectors, 0 to disable the cache
+     * */
+    public static synchronized void configure(int capacity_) {
+        if (capacity_ < 0) {
+            throw new IllegalArgumentException("termVectorCacheSize must be >= 0");
+        }
+        capacity = capacity_;
+        clear();
+    }
+
+    /**
+     * Empty the cache. The statistics are kept.
+     * */
+    public static synchronized void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Get the term vector of a document field of the current index,
+     * decoding it on a miss.
+     * @param docid the internal docid
+     * @param field the field name
+     * @param withPositions false if the caller needs only stems and frequencies
+     * @return the term vector
+     * @throws IOException Error accessing the Lucene index
+     * */
+    public static TermVector get(int docid, String field, boolean withPositions)
+            throws IOException {
+        return get(Idx.getCurrentIndex(), docid, field, withPositions);
+    }
+
+    /**
+     * Get the term vector of a document field, decoding it on a miss.
+     * @param index the index
+     * @param docid the internal docid
+     * @param field the field name
+     * @param withPositions false if the caller needs only stems and frequencies
+     * @return the term vector
+     * @throws IOException Error accessing the Lucene index
+     * */
+    public static TermVector get(IndexHandle index, int docid, String field, boolean withPositions)
+            throws IOException {
+        Long key = key(index, docid, field);
+        synchronized (TermVectorCache.class) {
+            if (capacity == 0) {
+                misses++;
+            } else {
+                TermVector tv = cache.get(key);
+                if (tv != null && (tv.hasPositions() || !withPositions)) {
+                    hits++;
+                    return tv;
+                }
+                misses++;
+            }
+        }
+        // decode outside the lock, so threads decode different documents at once
+        TermVector tv = new TermVector(index, docid, field, withPositions);
+        synchronized (TermVectorCache.class) {
+            if (capacity > 0) {
+                TermVector cached = cache.get(key);
+                // keep a full vector another thread may have cached meanwhile
+                if (cached == null || !cached.hasPositions()) {
+                    cache.put(key, tv);
+                }
+            }
+        }
+        return tv;
+    }
+
+    /**
+     * The cache key of a document field: the id of the (index, field)
+     * pair in the high word, the docid in the low word.
+     * */
+    private static synchronized Long key(IndexHandle index, int docid, String field) {
+        Map<String, Integer> indexFieldIds = fieldIds.get(index);
+        if (indexFieldIds == null) {
+            indexFieldIds = new HashMap<String, Integer>();
+            fieldIds.put(index, indexFieldIds);
+        }
+        Integer fieldId = indexFieldIds.get(field);
+        if (fieldId == null) {
+            fieldId = numFieldIds++;
+            indexFieldIds.put(field, fieldId);
+        }
+        return (((long) fieldId) << 32) | (docid & 0xffffffffL);
+    }
+
+    /**
+     * Get the number of lookups served from the cache.
+     * @return the number of hits
+     * */
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups that decoded a term vector.
+     * @return the number of misses
+     * */
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of term vectors dropped to stay within the capacity.
+     * @return the number of evictions
+     * */
+    public static synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Get the fraction of lookups served from the cache.
+     * @return the hit rate, 0 if there were no lookups
+     * */
+    public static synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0.0 : (double) hits / lookups;
+    }
+
+    /**
+     * Describe the cache statistics.
+     * @return the statistics
+     * */
+    public static synchronized String statistics() {
+        return String.format("TermVectorCache: size %d/%d, hits %d, misses %d, evictions %d, hit rate %.4f",
+                cache.size(), capacity, hits, misses, evictions, getHitRate());
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * First-stage candidate generation: the top k documents of a query,
+ * as (docid, score, externalId), without scoring and sorting every
+ * matching document.
+ * <p>
+ * Documents are kept in a bounded min-heap in the order of
+ * ScoreList.sort (score, then external id), so the result is exactly
+ * the first k entries of the sorted full ranking. A flat BM25 #SUM of
+ * terms is evaluated with max-score early termination: a BM25 term
+ * scores less than its idf, so once the heap is full, the terms whose
+ * idfs sum below the k-th score cannot put a document into the heap by
+ * themselves, and are only probed for documents that other terms match.
+ * Any other query is evaluated exhaustively into the heap.
+ * </p>
+ * */
+public class TopKRetriever {
+
+    /**
+     * The relative slack on the term score upper bounds, so rounding
+     * never prunes a document that ties the k-th score.
+     * */
+    private static final double BOUND_SLACK = 1e-9;
+
+    /**
+     * A bounded min-heap of documents, ordered by score and then by
+     * external id (a larger external id ranks lower, as in ScoreList.sort).
+     * External ids are looked up only to break score ties.
+     * */
+    private static class TopKHeap {
+        private IndexHandle index;
+        private int capacity;
+        private int size = 0;
+        private int[] docids;
+        private double[] scores;
+        private String[] externalIds;
+
+        private TopKHeap(IndexHandle index_, int capacity_) {
+            index = index_;
+            capacity = capacity_;
+            docids = new int[capacity];
+            scores = new double[capacity];
+            externalIds = new String[capacity];
+        }
+
+        private boolean isFull() {
+            return size == capacity;
+        }
+
+        /**
+         * The score a document must reach to enter a full heap.
+         * */
+        private double threshold() {
+            return scores[0];
+        }
+
+        private String externalId(int i) throws IOException {
+            if (externalIds[i] == null) {
+                externalIds[i] = index.getExternalDocid(docids[i]);
+            }
+            return externalIds[i];
+        }
+
+        /**
+         * See if entry i ranks below entry j.
+         * */
+        private boolean lower(int i, int j) throws IOException {
+            if (scores[i] != scores[j]) {
+                return scores[i] < scores[j];
+            }
+            return externalId(i).compareTo(externalId(j)) > 0;
+        }
+
+        private void swap(int i, int j) {
+            int docid = docids[i]; docids[i] = docids[j]; docids[j] = docid;
+            double score = scores[i]; scores[i] = scores[j]; scores[j] = score;
+            String externalId = externalIds[i]; externalIds[i] = externalIds[j]; externalIds[j] = externalId;
+        }
+
+        private void siftDown(int i) throws IOException {
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= size) { return; }
+                int child = left;
+                if (left + 1 < size && lower(left + 1, left)) { child = left + 1; }
+                if (!lower(child, i)) { return; }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void siftUp(int i) throws IOException {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!lower(i, parent)) { return; }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        /**
+         * Offer a document to the heap.
+         * @param docid the internal docid
+         * @param score the score
+         * */
+        private void offer(int docid, double score) throws IOException {
+            if (capacity == 0) {
+                return;
+            }
+            if (size < capacity) {
+                docids[size] = docid;
+                scores[size] = score;
+                externalIds[size] = null;
+                siftUp(size++);
+                return;
+            }
+            if (score < scores[0]) {
+                return;
+            }
+            // the root slot temporarily holds the candidate for a tie check
+            if (score == scores[0]) {
+                String candidateId = index.getExternalDocid(docid);
+                if (candidateId.compareTo(externalId(0)) >= 0) {
+                    return;
+                }
+                externalIds[0] = candidateId;
+            } else {
+                externalIds[0] = null;
+            }
+            docids[0] = docid;
+            scores[0] = score;
+            siftDown(0);
+        }
+
+        /**
+         * Empty the heap into a score list, best document first.
+         * */
+        private ScoreList drain() throws IOException {
+            int n = size;
+            int[] sortedDocids = new int[n];
+            double[] sortedScores = new double[n];
+            String[] sortedIds = new String[n];
+            for (int i = n - 1; i >= 0; --i) {
+                sortedDocids[i] = docids[0];
+                sortedScores[i] = scores[0];
+                sortedIds[i] = externalIds[0];
+                swap(0, --size);
+                siftDown(0);
+            }
+            ScoreList r = new ScoreList(index);
+            for (int i = 0; i < n; ++i) {
+                r.add(sortedDocids[i], sortedScores[i], sortedIds[i]);
+            }
+            return r;
+        }
+    }
+
+    /**
+     * Retrieve the top k documents of a query from the current index.
+     * @param qString the query string, wrapped in the model's default operator
+     * @param model the retrieval model
+     * @param k the number of documents to retrieve
+     * @return the top documents, best first; empty if nothing matches
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public static ScoreList retrieve(String qString, RetrievalModel model, int k)
+            throws IOException {
+        return retrieve(qString, model, k, Idx.getCurrentIndex());
+    }
+
+    /**
+     * Retrieve the top k documents of a query.
+     * @param qString the query string, wrapped in the model's default operator
+     * @param model the retrieval model
+     * @param k the number of documents to retrieve
+     * @param index the index to retrieve from
+     * @return the top documents, best first; empty if nothing matches
+     * @throws IOException Error accessing the Lucene index.
+     * */
+    public static ScoreList retrieve(String qString, RetrievalModel model, int k,
+            IndexHandle index) throws IOException {
+        String defaultOp = model.defaultQrySopName();
+        Qry q = QryParser.getQuery(defaultOp + "(" + qString + ")");
+        TopKHeap heap = new TopKHeap(index, k);
+        // ignore empty queries
+        if (q == null || q.args.size() == 0) {
+            return heap.drain();
+        }
+        q.initialize(model, index);
+
+        QrySopScore[] terms = (model instanceof RetrievalModelBM25) ? flatSumTerms(q) : null;
+        if (terms != null) {
+            retrieveMaxScore(terms, model, index, heap);
+        } else {
+            while (q.docIteratorHasMatch(model)) {
+                int docid = q.docIteratorGetMatch();
+                heap.offer(docid, ((QrySop) q).getScore(model));
+                q.docIteratorAdvancePast(docid);
+            }
+        }
+        return heap.drain();
+    }
+
+    /**
+     * Get the term operators of a flat #SUM (or a single #SCORE).
+     * @param q the initialized query
+     * @return the #SCORE operators in argument order, or null if the query is not flat
+     * */
+    private static QrySopScore[] flatSumTerms(Qry q) {
+        if (q instanceof QrySopScore) {
+            return new QrySopScore[] { (QrySopScore) q };
+        }
+        if (!(q instanceof QrySopSum)) {
+            return null;
+        }
+        QrySopScore[] terms = new QrySopScore[q.args.size()];
+        for (int i = 0; i < terms.length; ++i) {
+            Qry arg = q.args.get(i);
+            if (!(arg instanceof QrySopScore) || !(arg.args.get(0) instanceof QryIop)) {
+                return null;
+            }
+            terms[i] = (QrySopScore) arg;
+        }
+        return terms;
+    }
+
+    /**
+     * Evaluate a flat BM25 #SUM into the heap with max-score pruning.
+     * Scores are computed by the #SCORE operators and summed in argument
+     * order, so they are identical to QrySopSum's.
+     * @param terms the #SCORE operators
+     * @param model the BM25 model
+     * @param index the index the terms are read from
+     * @param heap the heap
+     * */
+    private static void retrieveMaxScore(QrySopScore[] terms, RetrievalModel model,
+            IndexHandle index, TopKHeap heap) throws IOException {
+        int n = terms.length;
+        QryIop[] lists = new QryIop[n];
+        Integer[] order = new Integer[n];
+        final double[] bound = new double[n];
+        double N = index.getNumDocs();
+        for (int i = 0; i < n; ++i) {
+            lists[i] = (QryIop) terms[i].args.get(0);
+            double df = lists[i].getDf();
+            // the rsj weight; the tf weight is always below 1
+            bound[i] = Math.max(0.0, Math.log((N - df + 0.5) / (df + 0.5))) * (1.0 + BOUND_SLACK);
+            order[i] = i;
+        }
+        // terms by increasing upper bound, and the bound sums of the prefixes
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(bound[a], bound[b]);
+            }
+        });
+        double[] prefix = new double[n + 1];
+        for (int j = 0; j < n; ++j) {
+            prefix[j + 1] = prefix[j] + bound[order[j]];
+        }
+
+        // terms order[0 .. firstEssential-1] cannot score a document into the heap alone
+        int firstEssential = 0;
+        double[] contribution = new double[n];
+        while (true) {
+            // the next candidate is the smallest docid of the essential terms
+            int docid = Integer.MAX_VALUE;
+            for (int j = firstEssential; j < n; ++j) {
+                QryIop list = lists[order[j]];
+                if (list.docIteratorHasMatch(model)) {
+                    docid = Math.min(docid, list.docIteratorGetMatch());
+                }
+            }
+            if (docid == Integer.MAX_VALUE) {
+                break;
+            }
+
+            Arrays.fill(contribution, 0.0);
+            double partial = 0.0;
+            for (int j = firstEssential; j < n; ++j) {
+                int t = order[j];
+                if (lists[t].docIteratorHasMatch(model) && lists[t].docIteratorGetMatch() == docid) {
+                    contribution[t] = terms[t].getScoreBM25(model);
+                    partial += contribution[t];
+                }
+            }
+            // probe the non-essential terms, largest bound first, while the document can still enter
+            boolean pruned = false;
+            for (int j = firstEssential - 1; j >= 0; --j) {
+                if (heap.isFull() && partial + prefix[j + 1] < heap.threshold()) {
+                    pruned = true;
+                    break;
+                }
+                int t = order[j];
+                lists[t].docIteratorAdvanceTo(docid);
+                if (lists[t].docIteratorHasMatch(model) && lists[t].docIteratorGetMatch() == docid) {
+                    contribution[t] = terms[t].getScoreBM25(model);
+                    partial += contribution[t];
+                }
+            }
+            if (!pruned) {
+                double score = 0.0;
+                for (int t = 0; t < n; ++t) {
+                    score += contribution[t];
+                }
+                heap.offer(docid, score);
+                if (heap.isFull()) {
+                    while (firstEssential < n && prefix[firstEssential + 1] < heap.threshold()) {
+                        firstEssential++;
+                    }
+                }
+            }
+            for (int j = firstEssential; j < n; ++j) {
+                lists[order[j]].docIteratorAdvancePast(docid);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Selects the k highest scoring keys out of a stream of (key, score)
+ * pairs with a bounded min-heap over parallel primitive arrays, so a
+ * candidate that does not make the cut costs no allocation.
+ * <p>
+ * Keys with equal scores are ordered by a tie breaker (by default the
+ * smaller key ranks higher), so the selection and the order of the
+ * result do not depend on the order of the candidates.
+ * </p>
+ * */
+public class TopKSelector {
+
+    /**
+     * Orders two keys whose scores are equal.
+     * */
+    public interface TieBreaker {
+        /**
+         * Compare two keys.
+         * @param a a key
+         * @param b another key
+         * @return a negative number if a ranks higher than b, positive if lower, 0 if equal
+         * */
+        int compare(int a, int b);
+    }
+
+    private int capacity;
+    private int size = 0;
+    private int[] keys;
+    private double[] scores;
+    private TieBreaker tieBreaker;
+    /**
+     * True once sort is called; the arrays are then in rank order.
+     * */
+    private boolean sorted = false;
+
+    /**
+     * Create a selector that breaks ties by the smaller key.
+     * @param k the number of keys to select
+     * */
+    public TopKSelector(int k) {
+        this(k, null);
+    }
+
+    /**
+     * Create a selector.
+     * @param k the number of keys to select
+     * @param tieBreaker_ the order of keys with equal scores, or null for the smaller key first
+     * */
+    public TopKSelector(int k, TieBreaker tieBreaker_) {
+        capacity = Math.max(k, 0);
+        keys = new int[capacity];
+        scores = new double[capacity];
+        tieBreaker = tieBreaker_;
+    }
+
+    /**
+     * See if (a, scoreA) ranks below (b, scoreB).
+     * */
+    private boolean lower(int a, double scoreA, int b, double scoreB) {
+        if (scoreA != scoreB) {
+            return scoreA < scoreB;
+        }
+        int cmp = (tieBreaker != null) ? tieBreaker.compare(a, b) : Integer.compare(a, b);
+        return cmp > 0;
+    }
+
+    private boolean lower(int i, int j) {
+        return lower(keys[i], scores[i], keys[j], scores[j]);
+    }
+
+    /**
+     * See if a candidate would be selected if it were offered now. It
+     * lets a caller skip work for candidates that cannot make the cut.
+     * @param key the key
+     * @param score the score
+     * @return true if offer would keep the candidate
+     * */
+    public boolean wouldAccept(int key, double score) {
+        if (size < capacity) {
+            return true;
+        }
+        return capacity > 0 && lower(keys[0], scores[0], key, score);
+    }
+
+    /**
+     * Offer a candidate.
+     * @param key the key
+     * @param score the score
+     * @return true if the candidate is kept, for now
+     * */
+    public boolean offer(int key, double score) {
+        if (sorted) {
+            throw new IllegalStateException("TopKSelector is already sorted");
+        }
+        if (size < capacity) {
+            keys[size] = key;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (!wouldAccept(key, score)) {
+            return false;
+        }
+        keys[0] = key;
+        scores[0] = score;
+        siftDown(0, size);
+        return true;
+    }
+
+    private void swap(int i, int j) {
+        int key = keys[i]; keys[i] = keys[j]; keys[j] = key;
+        double score = scores[i]; scores[i] = scores[j]; scores[j] = score;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!lower(i, parent)) { return; }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int n) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= n) { return; }
+            int child = left;
+            if (left + 1 < n && lower(left + 1, left)) { child = left + 1; }
+            if (!lower(child, i)) { return; }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    /**
+     * Put the selected keys in rank order, highest score first. No
+     * candidate can be offered afterwards.
+     * */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        // heap sort in place: the lowest goes to the end
+        for (int n = size - 1; n > 0; --n) {
+            swap(0, n);
+            siftDown(0, n);
+        }
+        sorted = true;
+    }
+
+    /**
+     * Get the number of selected keys.
+     * @return the number of keys, at most k
+     * */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the i'th selected key. After sort, i is the rank.
+     * @param i the index
+     * @return the key
+     * */
+    public int getKey(int i) {
+        return keys[i];
+    }
+
+    /**
+     * Get the score of the i'th selected key.
+     * @param i the index
+     * @return the score
+     * */
+    public double getScore(int i) {
+        return scores[i];
+    }
+}